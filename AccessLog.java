@@ -0,0 +1,168 @@
+package smarthome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+// Append-only access history for a lock: an epoch-millis timestamp and an event code
+// per entry, in two primitive rings. Once the retention cap is reached the oldest
+// entry is overwritten. Entries stay in time order (a clock step backwards is
+// recorded at the newest time), so a time range is two binary searches away.
+public class AccessLog {
+
+    public enum Event {
+        LOCKED("LOCKED"),
+        UNLOCKED("UNLOCKED - Valid code"),
+        FAILED_ATTEMPT("FAILED ATTEMPT - Invalid code");
+
+        private final String label;
+
+        Event(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int INITIAL_SIZE = 16;
+    private static final Event[] EVENTS = Event.values();
+
+    private final int capacity;
+    // Grown on demand up to capacity, so a lock that is never used costs nothing
+    private long[] times;
+    private byte[] events;
+    private int start; // slot of the oldest entry
+    private int size;
+    private long recorded;
+
+    public AccessLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AccessLog(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Access log capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public void record(Event event) {
+        record(System.currentTimeMillis(), event);
+    }
+
+    public synchronized void record(long timeMillis, Event event) {
+        if (size > 0) {
+            timeMillis = Math.max(timeMillis, timeAt(size - 1));
+        }
+        if (times == null || (size == times.length && size < capacity)) {
+            grow();
+        }
+        int slot;
+        if (size < times.length) {
+            slot = (start + size) % times.length;
+            size++;
+        } else {
+            slot = start;
+            start = (start + 1) % times.length;
+        }
+        times[slot] = timeMillis;
+        events[slot] = (byte) event.ordinal();
+        recorded++;
+    }
+
+    // Entries in [fromMillis, toMillis); a null event counts every kind
+    public synchronized int count(Event event, long fromMillis, long toMillis) {
+        int from = lowerBound(fromMillis);
+        int to = lowerBound(toMillis);
+        if (event == null) {
+            return Math.max(0, to - from);
+        }
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (events[slot(i)] == event.ordinal()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Timestamps of the matching entries in [fromMillis, toMillis), oldest first
+    public synchronized long[] getTimes(Event event, long fromMillis, long toMillis) {
+        int from = lowerBound(fromMillis);
+        int to = lowerBound(toMillis);
+        long[] result = new long[Math.max(0, to - from)];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            int slot = slot(i);
+            if (event == null || events[slot] == event.ordinal()) {
+                result[n++] = times[slot];
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    // Human-readable entries in [fromMillis, toMillis), formatted only when asked for
+    public synchronized List<String> format(long fromMillis, long toMillis) {
+        int from = lowerBound(fromMillis);
+        int to = lowerBound(toMillis);
+        List<String> lines = new ArrayList<String>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            int slot = slot(i);
+            lines.add(new Date(times[slot]).toString() + " - " + EVENTS[events[slot]].getLabel());
+        }
+        return lines;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Entries dropped because the retention cap was reached
+    public synchronized long getDiscardedCount() {
+        return recorded - size;
+    }
+
+    // First logical index whose time is >= timeMillis
+    private int lowerBound(long timeMillis) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timeAt(mid) < timeMillis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private long timeAt(int index) {
+        return times[slot(index)];
+    }
+
+    private int slot(int index) {
+        return (start + index) % times.length;
+    }
+
+    private void grow() {
+        int length = times == null ? Math.min(INITIAL_SIZE, capacity) : Math.min(capacity, times.length * 2);
+        long[] newTimes = new long[length];
+        byte[] newEvents = new byte[length];
+        for (int i = 0; i < size; i++) {
+            newTimes[i] = times[slot(i)];
+            newEvents[i] = events[slot(i)];
+        }
+        times = newTimes;
+        events = newEvents;
+        start = 0;
+    }
+}
@@ -0,0 +1,229 @@
+package smarthome;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs commands off the caller's thread. Every device with commands in flight has a
+// bounded mailbox that is drained by at most one task at a time, which keeps
+// per-device ordering while different devices proceed in parallel. A mailbox only
+// exists while it has work: its queue allocates per command, and once drained and
+// idle it is retired and dropped from the map. Drain tasks of every controller share
+// one executor, on virtual threads when the JVM has them (Java 21+). Otherwise it is
+// a fixed pool of platform threads, since a drain task blocks on journal syncs and an
+// unbounded pool would grow a thread per busy device; -Dcommands.threads sets its size
+// and -Dcommands.queue how many mailboxes may wait for a thread. A mailbox that finds
+// the pool saturated fails its queued commands with RejectedExecutionException, the
+// same way a full mailbox does.
+class AsyncCommandExecutor {
+
+    private static final int DRAIN_BATCH = 64;
+    private static final int RETIRED = -1;
+    private static final int THREADS = Integer.getInteger("commands.threads",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final int WAITING_MAILBOXES = Integer.getInteger("commands.queue", 16_384);
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    private final DeviceController controller;
+    private final Map<SmartDevice, Mailbox> mailboxes;
+    private final int queueCapacity;
+    private final long offerTimeoutMillis;
+
+    AsyncCommandExecutor(DeviceController controller, int queueCapacity, long offerTimeoutMillis) {
+        this.controller = controller;
+        this.mailboxes = new ConcurrentHashMap<SmartDevice, Mailbox>();
+        this.queueCapacity = queueCapacity;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+    }
+
+    // Blocks the caller for up to offerTimeoutMillis while the device's mailbox is full;
+    // after that the returned future fails with RejectedExecutionException
+    CompletableFuture<SmartDevice> submit(final CommandHandle command) {
+        final CompletableFuture<SmartDevice> result = new CompletableFuture<SmartDevice>();
+        Task task = new Task(command, result);
+        Mailbox mailbox = acquireMailbox(command.getDevice());
+        try {
+            if (!mailbox.queue.offer(task, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                mailbox.release();
+                result.completeExceptionally(new RejectedExecutionException(
+                        "Command queue full for " + command.getDevice().getName()));
+                return result;
+            }
+        } catch (InterruptedException e) {
+            mailbox.release();
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        mailbox.schedule();
+        return result;
+    }
+
+    int getQueuedCount(SmartDevice device) {
+        Mailbox mailbox = mailboxes.get(device);
+        return mailbox == null ? 0 : mailbox.queue.size();
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    // Mailboxes currently held, i.e. devices with commands queued or running
+    int getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    // Returns the device's mailbox with one reference taken for the caller's command
+    private Mailbox acquireMailbox(SmartDevice device) {
+        while (true) {
+            Mailbox mailbox = mailboxes.get(device);
+            if (mailbox == null) {
+                Mailbox created = new Mailbox(device, queueCapacity);
+                mailbox = mailboxes.putIfAbsent(device, created);
+                if (mailbox == null) {
+                    mailbox = created;
+                }
+            }
+            if (mailbox.acquire()) {
+                return mailbox;
+            }
+            // Retired between the lookup and now; it is on its way out of the map
+            mailboxes.remove(device, mailbox);
+        }
+    }
+
+    private final class Task implements Runnable {
+        final CommandHandle command;
+        final CompletableFuture<SmartDevice> result;
+
+        Task(CommandHandle command, CompletableFuture<SmartDevice> result) {
+            this.command = command;
+            this.result = result;
+        }
+
+        public void run() {
+            try {
+                controller.execute(command);
+                result.complete(command.getDevice());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+
+    // references counts commands that are queued, running or about to be offered. A
+    // mailbox is retired only at zero, so every command it ever accepted has finished
+    // before a new mailbox for the same device can start, and ordering is kept.
+    private final class Mailbox implements Runnable {
+        final SmartDevice device;
+        final BlockingQueue<Task> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicInteger references = new AtomicInteger();
+
+        Mailbox(SmartDevice device, int capacity) {
+            this.device = device;
+            this.queue = new LinkedBlockingQueue<Task>(capacity);
+        }
+
+        boolean acquire() {
+            while (true) {
+                int current = references.get();
+                if (current == RETIRED) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                retireIfIdle();
+            }
+        }
+
+        void retireIfIdle() {
+            if (references.compareAndSet(0, RETIRED)) {
+                mailboxes.remove(device, this);
+            }
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    EXECUTOR.execute(this);
+                } catch (RejectedExecutionException e) {
+                    reject();
+                }
+            }
+        }
+
+        // Nothing runs this mailbox, so fail what it holds; scheduled stays set while
+        // draining so no other thread starts on it meanwhile
+        private void reject() {
+            Task task;
+            while ((task = queue.poll()) != null) {
+                task.result.completeExceptionally(new RejectedExecutionException(
+                        "Command executor saturated, dropped command for " + device.getName()));
+                references.decrementAndGet();
+            }
+            scheduled.set(false);
+            if (!queue.isEmpty()) {
+                schedule();
+            } else {
+                retireIfIdle();
+            }
+        }
+
+        public void run() {
+            int done = 0;
+            Task task;
+            while (done < DRAIN_BATCH && (task = queue.poll()) != null) {
+                try {
+                    task.run();
+                } finally {
+                    references.decrementAndGet();
+                }
+                done++;
+            }
+            scheduled.set(false);
+            // Re-check after releasing: a producer may have enqueued after the last poll
+            if (!queue.isEmpty()) {
+                schedule();
+            } else {
+                retireIfIdle();
+            }
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 30L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(WAITING_MAILBOXES), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "device-command");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+}
@@ -1,18 +1,29 @@
 package smarthome;
 
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
 
 public class AutomationRule {
 
     private final String id;
     private String name;
-    private String triggerType;        // "motion" or "time"
+    private String triggerType;        // "motion", "time" or "condition"
     private String triggerDeviceId;    // For motion-based triggers
     private String actionDeviceId;
     private String action;             // e.g. "turn_on", "turn_off"
     private LocalTime scheduledTime;   // For time-based triggers
     private String days;               // Days for time-based rules
-    private boolean enabled;
+    private RuleCondition condition;   // For compound-condition rules
+    private Set<DayOfWeek> activeDays; // Parsed form of days
+    private volatile boolean enabled;
+    private DeviceController owner;    // Set once the rule is added to a controller
+    private long sequence;             // Position in the owner's rule list
+    private volatile CommandHandle actionHandle; // Resolved action, reused while the target device is unchanged
 
     // Constructor for motion-based rules (OLD - keep for backward compatibility)
     public AutomationRule(String id,
@@ -31,6 +42,7 @@ public class AutomationRule {
         this.enabled = true;
         this.scheduledTime = null;
         this.days = null;
+        this.activeDays = null;
     }
 
     // Constructor for time-based rules (NEW) - THIS IS THE ONE YOU'RE MISSING!
@@ -48,10 +60,31 @@ public class AutomationRule {
         this.action = action;
         this.scheduledTime = scheduledTime;
         this.days = days;
+        this.activeDays = parseDays(days);
         this.enabled = true;
         this.triggerDeviceId = null;
     }
 
+    // Constructor for rules that fire when a compound condition becomes true
+    public AutomationRule(String id,
+                          String name,
+                          RuleCondition condition,
+                          String actionDeviceId,
+                          String action) {
+
+        this.id = id;
+        this.name = name;
+        this.triggerType = "condition";
+        this.condition = condition;
+        this.actionDeviceId = actionDeviceId;
+        this.action = action;
+        this.enabled = true;
+        this.triggerDeviceId = null;
+        this.scheduledTime = null;
+        this.days = null;
+        this.activeDays = null;
+    }
+
     public boolean checkTrigger(SmartDevice device, LocalTime currentTime) {
         if (!enabled) return false;
 
@@ -74,6 +107,66 @@ public class AutomationRule {
         return false;
     }
 
+    public boolean isTimeBased() {
+        return scheduledTime != null;
+    }
+
+    public boolean isConditionBased() {
+        return condition != null;
+    }
+
+    // Next time this rule is due strictly after the given moment, or null for event rules
+    public LocalDateTime nextFireTime(LocalDateTime after) {
+        if (scheduledTime == null) {
+            return null;
+        }
+        LocalDateTime candidate = after.toLocalDate().atTime(scheduledTime);
+        if (!candidate.isAfter(after)) {
+            candidate = candidate.plusDays(1);
+        }
+        for (int i = 0; i < 7; i++) {
+            if (activeDays.contains(candidate.getDayOfWeek())) {
+                return candidate;
+            }
+            candidate = candidate.plusDays(1);
+        }
+        return null;
+    }
+
+    // Accepts the labels produced by the simulator menu: day names, "Weekdays (Mon-Fri)",
+    // "Weekend (Sat-Sun)" and "Every day". Missing or unrecognised input means every day.
+    static Set<DayOfWeek> parseDays(String days) {
+        if (days == null || days.trim().isEmpty()) {
+            return Collections.unmodifiableSet(EnumSet.allOf(DayOfWeek.class));
+        }
+        Set<DayOfWeek> result = EnumSet.noneOf(DayOfWeek.class);
+        for (String part : days.split(",")) {
+            String token = part.trim().toLowerCase(Locale.ROOT);
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (token.startsWith("every")) {
+                result.addAll(EnumSet.allOf(DayOfWeek.class));
+            } else if (token.startsWith("weekday")) {
+                result.addAll(EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY));
+            } else if (token.startsWith("weekend")) {
+                result.add(DayOfWeek.SATURDAY);
+                result.add(DayOfWeek.SUNDAY);
+            } else {
+                for (DayOfWeek day : DayOfWeek.values()) {
+                    String name = day.name().toLowerCase(Locale.ROOT);
+                    if (token.equals(name) || (token.length() >= 3 && name.startsWith(token))) {
+                        result.add(day);
+                    }
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            result = EnumSet.allOf(DayOfWeek.class);
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
     public String getId() {
         return id;
     }
@@ -98,12 +191,51 @@ public class AutomationRule {
         return action;
     }
 
+    public LocalTime getScheduledTime() {
+        return scheduledTime;
+    }
+
+    public String getDays() {
+        return days;
+    }
+
+    public RuleCondition getCondition() {
+        return condition;
+    }
+
+    public Set<DayOfWeek> getActiveDays() {
+        return activeDays;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
 
-    public void setEnabled(boolean enabled) {
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) {
+            return;
+        }
         this.enabled = enabled;
+        if (owner != null) {
+            owner.ruleEnabledChanged(this);
+        }
+    }
+
+    void attach(DeviceController owner, long sequence) {
+        this.owner = owner;
+        this.sequence = sequence;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    CommandHandle getActionHandle() {
+        return actionHandle;
+    }
+
+    void setActionHandle(CommandHandle actionHandle) {
+        this.actionHandle = actionHandle;
     }
 
     @Override
@@ -118,6 +250,15 @@ public class AutomationRule {
                     days,
                     enabled ? "ENABLED" : "DISABLED"
             );
+        } else if (condition != null) {
+            return String.format(
+                    "Rule: %s | IF %s THEN %s on %s | %s",
+                    name,
+                    condition,
+                    action,
+                    actionDeviceId,
+                    enabled ? "ENABLED" : "DISABLED"
+            );
         } else {
             return String.format(
                     "Rule: %s | IF %s on %s THEN %s on %s | %s",
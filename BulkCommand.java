@@ -0,0 +1,84 @@
+package smarthome;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Applies one operation to many devices in parallel. The device array is split
+// recursively on a fork-join pool; each device's failure is recorded in the
+// result and never stops the rest of the batch.
+public final class BulkCommand {
+
+    private static final int LEAF_SIZE = 64;
+
+    private BulkCommand() {
+    }
+
+    public static BulkResult run(Collection<SmartDevice> devices, DeviceOperation operation, Object value) {
+        return run(devices.toArray(new SmartDevice[0]), operation, value, null, ForkJoinPool.commonPool());
+    }
+
+    // When a controller is given every device command goes through the controller (and its
+    // journal); the caller syncs the journal once the whole batch is done
+    static BulkResult run(SmartDevice[] devices, DeviceOperation operation, Object value,
+                          DeviceController controller, ForkJoinPool pool) {
+        Throwable[] errors = new Throwable[devices.length];
+        Batch batch = new Batch(devices, errors, operation, value, controller, 0, devices.length);
+        if (devices.length <= LEAF_SIZE) {
+            batch.compute(); // not worth a hand-off
+        } else {
+            pool.invoke(batch);
+        }
+        return new BulkResult(devices, errors);
+    }
+
+    private static final class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SmartDevice[] devices;
+        private final Throwable[] errors;
+        private final DeviceOperation operation;
+        private final Object value;
+        private final DeviceController controller;
+        private final int from;
+        private final int to;
+
+        Batch(SmartDevice[] devices, Throwable[] errors, DeviceOperation operation, Object value,
+              DeviceController controller, int from, int to) {
+            this.devices = devices;
+            this.errors = errors;
+            this.operation = operation;
+            this.value = value;
+            this.controller = controller;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                for (int i = from; i < to; i++) {
+                    errors[i] = apply(devices[i]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Batch(devices, errors, operation, value, controller, from, mid),
+                    new Batch(devices, errors, operation, value, controller, mid, to));
+        }
+
+        private Throwable apply(SmartDevice device) {
+            try {
+                CommandHandle command = CommandHandle.bind(device, operation, value);
+                if (controller != null) {
+                    controller.executeNoSync(command, null);
+                } else {
+                    command.execute();
+                }
+                return null;
+            } catch (Exception e) {
+                return e;
+            }
+        }
+    }
+}
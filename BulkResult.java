@@ -0,0 +1,87 @@
+package smarthome;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Per-device outcome of a bulk command; a null error means the device succeeded.
+// Scenes also mark entries they skipped because the device was already in the target state.
+public class BulkResult {
+
+    private final SmartDevice[] devices;
+    private final Throwable[] errors;
+    private final boolean[] skipped;
+
+    BulkResult(SmartDevice[] devices, Throwable[] errors) {
+        this(devices, errors, null);
+    }
+
+    BulkResult(SmartDevice[] devices, Throwable[] errors, boolean[] skipped) {
+        this.devices = devices;
+        this.errors = errors;
+        this.skipped = skipped;
+    }
+
+    public int size() {
+        return devices.length;
+    }
+
+    public SmartDevice getDevice(int index) {
+        return devices[index];
+    }
+
+    public Throwable getError(int index) {
+        return errors[index];
+    }
+
+    public boolean isSuccess(int index) {
+        return errors[index] == null;
+    }
+
+    public boolean isSkipped(int index) {
+        return skipped != null && skipped[index];
+    }
+
+    public int getSkippedCount() {
+        int count = 0;
+        if (skipped != null) {
+            for (boolean s : skipped) {
+                if (s) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Entries that actually ran; skipped entries are not counted
+    public int getSuccessCount() {
+        return devices.length - getFailureCount() - getSkippedCount();
+    }
+
+    public int getFailureCount() {
+        int failures = 0;
+        for (Throwable error : errors) {
+            if (error != null) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    // Device id -> error, in the order the devices were processed
+    public Map<String, Throwable> getFailures() {
+        Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        for (int i = 0; i < devices.length; i++) {
+            if (errors[i] != null) {
+                failures.put(devices[i].getId(), errors[i]);
+            }
+        }
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        String result = "Bulk result: " + getSuccessCount() + " succeeded, " + getFailureCount() + " failed";
+        return skipped == null ? result : result + ", " + getSkippedCount() + " already set";
+    }
+}
@@ -0,0 +1,224 @@
+package smarthome;
+
+// A command resolved once against a device: the operation and its argument are
+// stored in primitive slots, so execute() does no string matching or unboxing
+// and the same handle can be run any number of times.
+public final class CommandHandle {
+
+    private final SmartDevice device;
+    private final DeviceOperation operation;
+    private final int intValue;
+    private final double doubleValue;
+    private final boolean booleanValue;
+    private final String textValue;
+
+    private CommandHandle(SmartDevice device, DeviceOperation operation,
+                          int intValue, double doubleValue, boolean booleanValue, String textValue) {
+        this.device = device;
+        this.operation = operation;
+        this.intValue = intValue;
+        this.doubleValue = doubleValue;
+        this.booleanValue = booleanValue;
+        this.textValue = textValue;
+    }
+
+    // Resolves a textual command such as "brightness" with a loosely typed value
+    public static CommandHandle resolve(SmartDevice device, String command, Object value)
+            throws InvalidOperationException {
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null) {
+            throw new InvalidOperationException(command, "Unknown command for '" + device.getName() + "'");
+        }
+        return bind(device, operation, value);
+    }
+
+    public static CommandHandle bind(SmartDevice device, DeviceOperation operation, Object value)
+            throws InvalidOperationException {
+        checkSupported(device, operation);
+        switch (operation.getArgumentType()) {
+            case INT:
+                return new CommandHandle(device, operation, toInt(operation, value), 0.0, false, null);
+            case DOUBLE:
+                return new CommandHandle(device, operation, 0, toDouble(operation, value), false, null);
+            case BOOLEAN:
+                return new CommandHandle(device, operation, 0, 0.0, toBoolean(operation, value), null);
+            case TEXT:
+                return new CommandHandle(device, operation, 0, 0.0, false, value == null ? null : value.toString());
+            default:
+                return new CommandHandle(device, operation, 0, 0.0, false, null);
+        }
+    }
+
+    public static CommandHandle of(SmartDevice device, DeviceOperation operation)
+            throws InvalidOperationException {
+        checkArgument(operation, DeviceOperation.ArgumentType.NONE);
+        return bind(device, operation, null);
+    }
+
+    public static CommandHandle ofInt(SmartDevice device, DeviceOperation operation, int value)
+            throws InvalidOperationException {
+        checkSupported(device, operation);
+        checkArgument(operation, DeviceOperation.ArgumentType.INT);
+        return new CommandHandle(device, operation, value, 0.0, false, null);
+    }
+
+    public static CommandHandle ofDouble(SmartDevice device, DeviceOperation operation, double value)
+            throws InvalidOperationException {
+        checkSupported(device, operation);
+        checkArgument(operation, DeviceOperation.ArgumentType.DOUBLE);
+        return new CommandHandle(device, operation, 0, value, false, null);
+    }
+
+    public static CommandHandle ofBoolean(SmartDevice device, DeviceOperation operation, boolean value)
+            throws InvalidOperationException {
+        checkSupported(device, operation);
+        checkArgument(operation, DeviceOperation.ArgumentType.BOOLEAN);
+        return new CommandHandle(device, operation, 0, 0.0, value, null);
+    }
+
+    public static CommandHandle ofText(SmartDevice device, DeviceOperation operation, String value)
+            throws InvalidOperationException {
+        checkSupported(device, operation);
+        checkArgument(operation, DeviceOperation.ArgumentType.TEXT);
+        return new CommandHandle(device, operation, 0, 0.0, false, value);
+    }
+
+    // Runs under the device monitor so the online check and the operation are one step
+    public void execute() throws DeviceOfflineException {
+        synchronized (device) {
+            if (!device.isOnline()) {
+                throw new DeviceOfflineException(device.getName());
+            }
+            switch (operation) {
+                case TURN_ON:
+                    device.turnOn();
+                    break;
+                case TURN_OFF:
+                    device.turnOff();
+                    break;
+                default:
+                    ((Controllable) device).apply(this);
+            }
+        }
+    }
+
+    // True when executing this command would leave the device unchanged
+    public boolean isSatisfied() {
+        switch (operation) {
+            case TURN_ON:
+                return device.isOn();
+            case TURN_OFF:
+                return !device.isOn();
+            default:
+                return ((Controllable) device).isInState(this);
+        }
+    }
+
+    public SmartDevice getDevice() {
+        return device;
+    }
+
+    public DeviceOperation getOperation() {
+        return operation;
+    }
+
+    public int getIntValue() {
+        return intValue;
+    }
+
+    public double getDoubleValue() {
+        return doubleValue;
+    }
+
+    public boolean getBooleanValue() {
+        return booleanValue;
+    }
+
+    public String getTextValue() {
+        return textValue;
+    }
+
+    @Override
+    public String toString() {
+        String command = operation.getCommand();
+        switch (operation.getArgumentType()) {
+            case INT:
+                return command + " " + intValue + " on " + device.getName();
+            case DOUBLE:
+                return command + " " + doubleValue + " on " + device.getName();
+            case BOOLEAN:
+                return command + " " + booleanValue + " on " + device.getName();
+            case TEXT:
+                return command + " " + textValue + " on " + device.getName();
+            default:
+                return command + " on " + device.getName();
+        }
+    }
+
+    private static void checkSupported(SmartDevice device, DeviceOperation operation)
+            throws InvalidOperationException {
+        if (operation == DeviceOperation.TURN_ON || operation == DeviceOperation.TURN_OFF) {
+            return;
+        }
+        if (!(device instanceof Controllable)) {
+            throw new InvalidOperationException(operation.getCommand(),
+                    "Device '" + device.getName() + "' is not controllable");
+        }
+        if (!((Controllable) device).supports(operation)) {
+            throw new InvalidOperationException(operation.getCommand(),
+                    "Not supported by '" + device.getName() + "'");
+        }
+    }
+
+    private static void checkArgument(DeviceOperation operation, DeviceOperation.ArgumentType type)
+            throws InvalidOperationException {
+        if (operation.getArgumentType() != type) {
+            throw new InvalidOperationException(operation.getCommand(),
+                    "Wrong argument type, expected " + operation.getArgumentType());
+        }
+    }
+
+    private static int toInt(DeviceOperation operation, Object value) throws InvalidOperationException {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt(((String) value).trim());
+            } catch (NumberFormatException ignored) {
+                // reported below
+            }
+        }
+        throw new InvalidOperationException(operation.getCommand(), "Expects a whole number, got " + value);
+    }
+
+    private static double toDouble(DeviceOperation operation, Object value) throws InvalidOperationException {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException ignored) {
+                // reported below
+            }
+        }
+        throw new InvalidOperationException(operation.getCommand(), "Expects a number, got " + value);
+    }
+
+    private static boolean toBoolean(DeviceOperation operation, Object value) throws InvalidOperationException {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof String) {
+            String text = ((String) value).trim();
+            if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("on") || text.equalsIgnoreCase("yes")) {
+                return true;
+            }
+            if (text.equalsIgnoreCase("false") || text.equalsIgnoreCase("off") || text.equalsIgnoreCase("no")) {
+                return false;
+            }
+        }
+        throw new InvalidOperationException(operation.getCommand(), "Expects true or false, got " + value);
+    }
+}
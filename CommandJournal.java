@@ -0,0 +1,514 @@
+package smarthome;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Write-ahead journal of the commands executed through a DeviceController.
+//
+// Callers append a record while they still hold the device monitor, so the
+// journal order matches the order the commands took effect, and then wait for
+// it to become durable. A single writer thread does the I/O: it takes every
+// record appended since its last write, writes them in one go and fsyncs once
+// (group commit), so concurrent callers share a sync instead of paying one each.
+//
+// Record: int payload length, int CRC32 of the payload, then the payload:
+//   long sequence, long timestamp, byte operation code, device id, rule id (null
+//   for direct commands), argument as the operation's ArgumentType
+// Operation codes are DeviceOperation.getCode(), never the enum ordinal. Access codes
+// are never written: an unlock is journaled as its outcome (UNLOCK_OUTCOME, one byte,
+// 1 = unlocked, 0 = failed attempt) and a code change as the lock's new salt and
+// digest (CODE_DIGEST). Older journals may still hold plain UNLOCK and SET_CODE
+// records; those are read, but never written any more.
+// Strings are an unsigned short byte length (0xFFFF for null) followed by UTF-8.
+// A record with a bad length or checksum ends the journal: it is the torn tail
+// of a write that was interrupted by a crash, and is cut off when the file is opened.
+// An intact record with an unknown operation code is skipped.
+// The file is read through memory-mapped windows of MAP_WINDOW bytes, so a journal
+// can outgrow the 2 GB a single mapping can cover.
+public final class CommandJournal {
+
+    private static final int INITIAL_BUFFER = 64 * 1024;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_PAYLOAD = 1 << 20;
+    private static final int NULL_STRING = 0xFFFF;
+    private static final int UNLOCK_OUTCOME = 64;
+    private static final int CODE_DIGEST = 65;
+    private static final int MAP_WINDOW = Math.max(MAX_PAYLOAD + RECORD_HEADER,
+            Integer.getInteger("journal.mapWindow", 64 << 20));
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Thread writer;
+
+    // Guarded by this: records waiting for the writer, and the sequence counter
+    private ByteBuffer filling = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER);
+    private long lastSequence;
+    private long checkpointSequence = -1L;
+    private boolean closed;
+
+    // Guarded by synced: what the writer has fsynced so far
+    private final Object synced = new Object();
+    private volatile long durableSequence;
+    private volatile IOException failure;
+
+    private final CRC32 crc = new CRC32();
+    private long validEnd;
+    private long replayAfter;
+    private volatile long syncCount;
+    private volatile long recordsSynced;
+
+    private CommandJournal(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "command-journal");
+        this.writer.setDaemon(true);
+    }
+
+    // Opens (or creates) the journal and cuts off a torn tail. snapshotSequence is the
+    // journal position recorded in the snapshot the home was loaded from: replay()
+    // skips everything up to it, and new records are numbered after it.
+    public static CommandJournal open(Path path, long snapshotSequence) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        CommandJournal journal = new CommandJournal(path, channel);
+        try {
+            journal.scan(null);
+            if (channel.size() > journal.validEnd) {
+                channel.truncate(journal.validEnd);
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.position(journal.validEnd);
+        journal.replayAfter = snapshotSequence;
+        journal.lastSequence = Math.max(journal.lastSequence, snapshotSequence);
+        journal.durableSequence = journal.lastSequence;
+        journal.writer.start();
+        return journal;
+    }
+
+    // Re-applies the journaled commands newer than the snapshot. Commands are absolute
+    // ("brightness 40", "lock"), so replaying one the snapshot already reflects leaves
+    // the device unchanged. Returns how many were applied.
+    //
+    // Replay only restores state. Each record is applied to its device directly, not
+    // through the controller, so nothing is journaled again. The home's state change
+    // bus is suspended meanwhile, so listeners, compound and motion rules never see the
+    // replayed changes and cannot fire commands of their own; compound conditions are
+    // re-read from the devices afterwards. The devices' own INFO lines, already logged
+    // the first time, are muted on this thread. Replay before the home takes traffic:
+    // changes made by other threads meanwhile are not published.
+    public int replay(DeviceController controller) throws IOException {
+        StateChangeBus bus = controller.getHome().getStateChangeBus();
+        int applied;
+        bus.setSuspended(true);
+        EventLog.muteCurrentThread(true);
+        try {
+            applied = scan(controller);
+        } finally {
+            EventLog.muteCurrentThread(false);
+            bus.setSuspended(false);
+        }
+        controller.getRuleNetwork().resync();
+        EventLog.info(null, path.getFileName().toString(), "replayed journal commands", Integer.toString(applied));
+        return applied;
+    }
+
+    // Appends a record for a command that has just been executed; call while holding the
+    // device monitor. Returns the record's sequence number for awaitDurable().
+    long append(CommandHandle command, String ruleId) {
+        DeviceOperation operation = command.getOperation();
+        int code = operation.getCode();
+        byte[] device = encode(command.getDevice().getId());
+        byte[] rule = encode(ruleId);
+        byte[] text = null;
+        byte[] lockArgument = null;
+        if (operation == DeviceOperation.UNLOCK) {
+            SmartLock lock = (SmartLock) command.getDevice();
+            code = UNLOCK_OUTCOME;
+            lockArgument = new byte[]{(byte) (lock.matchesCode(command.getTextValue()) ? 1 : 0)};
+        } else if (operation == DeviceOperation.SET_CODE) {
+            SmartLock lock = (SmartLock) command.getDevice();
+            code = CODE_DIGEST;
+            lockArgument = new byte[SmartLock.SALT_BYTES + SmartLock.DIGEST_BYTES];
+            System.arraycopy(lock.getCodeSalt(), 0, lockArgument, 0, SmartLock.SALT_BYTES);
+            System.arraycopy(lock.getCodeDigest(), 0, lockArgument, SmartLock.SALT_BYTES, SmartLock.DIGEST_BYTES);
+        } else if (operation.getArgumentType() == DeviceOperation.ArgumentType.TEXT) {
+            text = encode(command.getTextValue());
+        }
+        int payload = 8 + 8 + 1 + stringSize(device) + stringSize(rule)
+                + (lockArgument != null ? lockArgument.length : argumentSize(command, text));
+        synchronized (this) {
+            if (closed) {
+                return 0L;
+            }
+            long sequence = ++lastSequence;
+            ensureCapacity(RECORD_HEADER + payload);
+            int start = filling.position();
+            filling.putInt(payload);
+            filling.putInt(0); // checksum, filled in below
+            filling.putLong(sequence);
+            filling.putLong(System.currentTimeMillis());
+            filling.put((byte) code);
+            putString(filling, device);
+            putString(filling, rule);
+            if (lockArgument != null) {
+                filling.put(lockArgument);
+            } else {
+                switch (operation.getArgumentType()) {
+                    case INT:
+                        filling.putInt(command.getIntValue());
+                        break;
+                    case DOUBLE:
+                        filling.putDouble(command.getDoubleValue());
+                        break;
+                    case BOOLEAN:
+                        filling.put((byte) (command.getBooleanValue() ? 1 : 0));
+                        break;
+                    case TEXT:
+                        putString(filling, text);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            ByteBuffer body = filling.duplicate();
+            body.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + payload);
+            crc.reset();
+            crc.update(body);
+            filling.putInt(start + 4, (int) crc.getValue());
+            notifyAll();
+            return sequence;
+        }
+    }
+
+    // Blocks until the record with the given sequence has been fsynced. Returns false
+    // if the journal failed or was closed first, or the wait was interrupted.
+    public boolean awaitDurable(long sequence) {
+        if (durableSequence >= sequence) {
+            return true;
+        }
+        synchronized (synced) {
+            while (durableSequence < sequence) {
+                if (failure != null || !writer.isAlive()) {
+                    return false;
+                }
+                try {
+                    synced.wait(100L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    // Number of fsyncs so far, and the records they covered, to see how well commits group
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    public long getRecordsSynced() {
+        return recordsSynced;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+
+    // After a snapshot covering everything up to snapshotSequence has been saved, the
+    // journal can start over. The file is only emptied if no newer record exists by the
+    // time the writer gets to it; otherwise it is kept and replay keeps skipping by sequence.
+    public synchronized void checkpoint(long snapshotSequence) {
+        checkpointSequence = snapshotSequence;
+        notifyAll();
+    }
+
+    // Writes out everything appended so far, then stops the writer and closes the file
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long batchEnd;
+            long batchStart;
+            boolean truncate = false;
+            synchronized (this) {
+                while (filling.position() == 0 && checkpointSequence < 0L && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only close() stops the writer
+                    }
+                }
+                if (checkpointSequence >= 0L) {
+                    truncate = filling.position() == 0 && lastSequence <= checkpointSequence;
+                    checkpointSequence = -1L;
+                }
+                if (filling.position() == 0 && !truncate) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                ByteBuffer full = filling;
+                filling = writing;
+                writing = full;
+                batchStart = durableSequence;
+                batchEnd = lastSequence;
+            }
+            try {
+                if (truncate) {
+                    channel.truncate(0L);
+                    channel.position(0L);
+                }
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                EventLog.warn(null, path.getFileName().toString(), "journal write failed:", e.getMessage());
+                synchronized (synced) {
+                    synced.notifyAll();
+                }
+                return;
+            }
+            writing.clear();
+            syncCount++;
+            recordsSynced += batchEnd - batchStart;
+            synchronized (synced) {
+                durableSequence = batchEnd;
+                synced.notifyAll();
+            }
+        }
+    }
+
+    // Walks the records in [0, size), stopping at the first damaged one. With a
+    // controller the records after replayAfter are applied; returns how many were.
+    // A record that does not fit in the current window starts the next one; windows
+    // are larger than MAX_PAYLOAD, so every intact record fits in a window of its own.
+    private int scan(DeviceController replayInto) throws IOException {
+        long size = channel.size();
+        int applied = 0;
+        long end = 0L;
+        long base = 0L;
+        ByteBuffer in = null;
+        byte[] scratch = new byte[256];
+        CRC32 check = new CRC32();
+        while (size - end >= RECORD_HEADER) {
+            if (in == null || end - base + RECORD_HEADER > in.limit()) {
+                base = end;
+                in = map(base, size);
+            }
+            in.position((int) (end - base));
+            int payload = in.getInt();
+            int checksum = in.getInt();
+            if (payload <= 0 || payload > MAX_PAYLOAD || payload > size - end - RECORD_HEADER) {
+                break;
+            }
+            if (payload > in.remaining()) {
+                base = end;
+                in = map(base, size);
+                in.position(RECORD_HEADER);
+            }
+            int start = in.position() - RECORD_HEADER;
+            ByteBuffer body = in.duplicate();
+            body.limit(start + RECORD_HEADER + payload);
+            check.reset();
+            check.update(body);
+            if ((int) check.getValue() != checksum) {
+                break;
+            }
+            long sequence;
+            String deviceId;
+            int code;
+            boolean known = true;
+            Object value = null;
+            try {
+                sequence = in.getLong();
+                in.getLong(); // timestamp
+                code = in.get() & 0xFF;
+                deviceId = getString(in, scratch);
+                getString(in, scratch); // rule id
+                if (code == UNLOCK_OUTCOME) {
+                    value = in.get() != 0;
+                } else if (code == CODE_DIGEST) {
+                    byte[] saltAndDigest = new byte[SmartLock.SALT_BYTES + SmartLock.DIGEST_BYTES];
+                    in.get(saltAndDigest);
+                    value = saltAndDigest;
+                } else {
+                    DeviceOperation operation = DeviceOperation.fromCode(code);
+                    known = operation != null;
+                    value = known ? getArgument(in, operation, scratch) : null;
+                }
+            } catch (BufferUnderflowException e) {
+                break;
+            }
+            end = base + start + RECORD_HEADER + payload;
+            lastSequence = Math.max(lastSequence, sequence);
+            if (replayInto != null && known && sequence > replayAfter
+                    && replayRecord(replayInto, deviceId, code, value)) {
+                applied++;
+            }
+        }
+        validEnd = end;
+        return applied;
+    }
+
+    private ByteBuffer map(long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+    }
+
+    private static Object getArgument(ByteBuffer in, DeviceOperation operation, byte[] scratch) {
+        switch (operation.getArgumentType()) {
+            case INT:
+                return in.getInt();
+            case DOUBLE:
+                return in.getDouble();
+            case BOOLEAN:
+                return in.get() != 0;
+            case TEXT:
+                return getString(in, scratch);
+            default:
+                return null;
+        }
+    }
+
+    private static boolean replayRecord(DeviceController controller, String deviceId, int code, Object value) {
+        SmartDevice device = controller.getHome().findDevice(deviceId);
+        if (device == null) {
+            return false;
+        }
+        if (device instanceof SmartLock) {
+            return replayLock((SmartLock) device, code, value);
+        }
+        try {
+            CommandHandle.bind(device, DeviceOperation.fromCode(code), value).execute();
+            return true;
+        } catch (InvalidOperationException | DeviceOfflineException e) {
+            EventLog.warn(device, "journal replay skipped", e.getMessage());
+            return false;
+        }
+    }
+
+    // Lock records restore the state directly. Running lock() or unlock() again would
+    // add LOCKED, UNLOCKED and FAILED_ATTEMPT entries to the access log stamped with
+    // the restart time, for events that did not happen then.
+    private static boolean replayLock(SmartLock lock, int code, Object value) {
+        if (code == UNLOCK_OUTCOME) {
+            if (!(Boolean) value) {
+                return false; // a failed attempt changed nothing
+            }
+            lock.restoreLocked(false);
+        } else if (code == CODE_DIGEST) {
+            byte[] saltAndDigest = (byte[]) value;
+            lock.restoreCode(Arrays.copyOfRange(saltAndDigest, 0, SmartLock.SALT_BYTES),
+                    Arrays.copyOfRange(saltAndDigest, SmartLock.SALT_BYTES, saltAndDigest.length));
+        } else if (code == DeviceOperation.LOCK.getCode()) {
+            lock.restoreLocked(true);
+        } else if (code == DeviceOperation.UNLOCK.getCode()) {
+            // Plain-code record from an older journal
+            if (!lock.matchesCode((String) value)) {
+                return false;
+            }
+            lock.restoreLocked(false);
+        } else if (code == DeviceOperation.SET_CODE.getCode()) {
+            lock.restore(lock.isLocked(), (String) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (filling.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(filling.capacity() * 2, filling.position() + bytes));
+        filling.flip();
+        larger.put(filling);
+        filling = larger;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 2 + (bytes == null ? 0 : Math.min(bytes.length, NULL_STRING - 1));
+    }
+
+    private static int argumentSize(CommandHandle command, byte[] text) {
+        switch (command.getOperation().getArgumentType()) {
+            case INT:
+                return 4;
+            case DOUBLE:
+                return 8;
+            case BOOLEAN:
+                return 1;
+            case TEXT:
+                return stringSize(text);
+            default:
+                return 0;
+        }
+    }
+
+    // Strings longer than the length field allows are cut; ids and command texts never are
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putShort((short) NULL_STRING);
+            return;
+        }
+        int length = Math.min(bytes.length, NULL_STRING - 1);
+        out.putShort((short) length);
+        out.put(bytes, 0, length);
+    }
+
+    private static String getString(ByteBuffer in, byte[] scratch) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] target = length > scratch.length ? new byte[length] : scratch;
+        in.get(target, 0, length);
+        return new String(target, 0, length, StandardCharsets.UTF_8);
+    }
+}
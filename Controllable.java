@@ -3,4 +3,7 @@ package smarthome;
 public interface Controllable {
     void control(String command, Object value);
     String[] getAvailableCommands();
+    boolean supports(DeviceOperation operation);
+    void apply(CommandHandle command);  // called by CommandHandle.execute()
+    boolean isInState(CommandHandle command);  // true when apply() would change nothing
 }
@@ -1,29 +1,193 @@
 package smarthome;
 
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 public class DeviceController {
 
+    private static final int ASYNC_QUEUE_CAPACITY = 256;      // pending commands per device
+    private static final long ASYNC_OFFER_TIMEOUT_MS = 1000L;  // how long a caller waits on a full queue
+
     private final Home home;
     private final List<AutomationRule> rules;
+    private final RuleIndex ruleIndex;
+    private final RuleScheduler scheduler;
+    private final RuleNetwork ruleNetwork;
+    private final AsyncCommandExecutor asyncExecutor;
+    private final StateChangeBus.Subscription motionSubscription;
+    private volatile CommandJournal journal;
+    private volatile Executor homeExecutor; // the home's shard mailbox while it is in a HomeRegistry
+    private long nextRuleSequence = 0L;
+
+    // Instrumentation, resolved once so recording never looks a metric up by name
+    private final MetricsRegistry metrics;
+    private final OperationMetrics commandMetrics;
+    private final OperationMetrics ruleMetrics;
+    private final LatencyHistogram byIdLatency;
+    private final LatencyHistogram byNameLatency;
+    private final LatencyHistogram eventLatency;
+    private final MetricsRegistry.Counter byIdCalls;
+    private final MetricsRegistry.Counter byNameCalls;
+    private final MetricsRegistry.Counter eventCalls;
+    private final MetricsRegistry.Counter rulesFired;
+    private final MetricsRegistry.Counter rulesFailed;
 
     public DeviceController(Home home) {
+        this(home, Clock.systemDefaultZone());
+    }
+
+    public DeviceController(Home home, Clock clock) {
+        this(home, clock, new MetricsRegistry());
+    }
+
+    // Several controllers may share one registry to aggregate their metrics
+    public DeviceController(Home home, Clock clock, MetricsRegistry metrics) {
+        this.metrics = metrics;
+        this.commandMetrics = new OperationMetrics(metrics, "command");
+        this.ruleMetrics = new OperationMetrics(metrics, "rule");
+        this.byIdLatency = metrics.histogram("executeOnDevice");
+        this.byNameLatency = metrics.histogram("executeOnDeviceByName");
+        this.eventLatency = metrics.histogram("handleEvent");
+        this.byIdCalls = metrics.counter("executeOnDevice");
+        this.byNameCalls = metrics.counter("executeOnDeviceByName");
+        this.eventCalls = metrics.counter("handleEvent");
+        this.rulesFired = metrics.counter("rules.fired");
+        this.rulesFailed = metrics.counter("rules.failed");
         this.home = home;
-        this.rules = new ArrayList<AutomationRule>();
+        this.rules = new CopyOnWriteArrayList<AutomationRule>();
+        this.ruleIndex = new RuleIndex();
+        this.scheduler = new RuleScheduler(this, clock);
+        this.ruleNetwork = new RuleNetwork(this, home, clock);
+        this.asyncExecutor = new AsyncCommandExecutor(this, ASYNC_QUEUE_CAPACITY, ASYNC_OFFER_TIMEOUT_MS);
+        // Motion rules are driven by the sensors themselves: a detection reaches
+        // handleEvent through the home's state change bus, off the sensor's lock
+        this.motionSubscription = home.getStateChangeBus().subscribe(null, null, EnumSet.of(StateChange.Type.MOTION),
+                new StateChangeBus.Listener() {
+                    public void onStateChange(StateChange change) {
+                        if (change.getBooleanValue()) {
+                            handleEvent(change.getDeviceId(), "motion_detected");
+                        }
+                    }
+                });
+        home.attachController(this);
     }
 
     public Home getHome() {
         return home;
     }
 
-    public void addRule(AutomationRule rule) {
+    // Detaches the controller from its home: motion and compound rules stop firing and
+    // the bus no longer references it. Close a controller before replacing it with
+    // another one for the same home, or both fire every motion rule.
+    public void close() {
+        home.detachController(this);
+        motionSubscription.cancel();
+        ruleNetwork.close();
+        scheduler.shutdown();
+    }
+
+    public RuleScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Re-checks the time windows of compound conditions now; a timer does this at
+    // every window boundary, so only callers driving a fixed Clock need it
+    public int runTimeWindows() {
+        return ruleNetwork.runTimeWindows();
+    }
+
+    void setHomeExecutor(Executor executor) {
+        this.homeExecutor = executor;
+    }
+
+    // Timer-driven work (time rules, compound rule windows) goes through here so that a
+    // home in a HomeRegistry only ever runs on its shard; otherwise it runs inline
+    void runOnHome(Runnable task) {
+        Executor executor = homeExecutor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    // Runs a due device schedule like any other command, journaled and metered, and on
+    // the home's shard when the home is in a HomeRegistry
+    void runScheduled(final ScheduleIndex index, final ScheduleIndex.Entry entry) {
+        Executor executor = homeExecutor;
+        if (executor == null) {
+            index.run(entry, this);
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                index.run(entry, DeviceController.this);
+            }
+        });
+    }
+
+    RuleNetwork getRuleNetwork() {
+        return ruleNetwork;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // Once set, every command executed through this controller is journaled. Replay
+    // the journal before attaching it, so replayed commands are not journaled twice.
+    public void setJournal(CommandJournal journal) {
+        this.journal = journal;
+    }
+
+    public CommandJournal getJournal() {
+        return journal;
+    }
+
+    public synchronized void addRule(AutomationRule rule) {
         rules.add(rule);
-        System.out.println("Added rule: " + rule);
+        rule.attach(this, nextRuleSequence++);
+        if (rule.isEnabled()) {
+            index(rule);
+        }
+        if (EventLog.isEnabled(EventLog.Level.INFO)) {
+            EventLog.info(rule.getId(), rule.getName(), "Added rule: {}", rule.toString());
+        }
     }
 
     public List<AutomationRule> getRules() {
-        return rules;
+        return Collections.unmodifiableList(rules);
+    }
+
+    // Called by AutomationRule.setEnabled so disabled rules leave the dispatch index
+    synchronized void ruleEnabledChanged(AutomationRule rule) {
+        if (rule.isEnabled()) {
+            index(rule);
+        } else if (rule.isTimeBased()) {
+            scheduler.cancel(rule);
+        } else if (rule.isConditionBased()) {
+            ruleNetwork.remove(rule);
+        } else {
+            ruleIndex.remove(rule);
+        }
+    }
+
+    private void index(AutomationRule rule) {
+        if (rule.isTimeBased()) {
+            scheduler.schedule(rule);
+        } else if (rule.isConditionBased()) {
+            ruleNetwork.add(rule);
+        } else {
+            ruleIndex.add(rule);
+        }
     }
 
     // Find device by ID (keep for backward compatibility)
@@ -37,18 +201,21 @@ public class DeviceController {
 
     // NEW: Find device by name
     public SmartDevice findDeviceByName(String name) throws DeviceNotFoundException {
-        for (SmartDevice device : home.getAllDevices()) {
-            if (device.getName().equalsIgnoreCase(name)) {
-                return device;
-            }
+        SmartDevice device = home.findDeviceByName(name);
+        if (device == null) {
+            throw new DeviceNotFoundException(name);
         }
-        throw new DeviceNotFoundException(name);
+        return device;
     }
 
     public void listAllDevices() {
+        EventLog.flush();
         System.out.println("\n--- All Devices ---");
+        StringBuilder line = new StringBuilder(128);
         for (SmartDevice device : home.getAllDevices()) {
-            System.out.println(device.getName() + " [" + device.getId() + "] -> " + device.getStatus());
+            line.setLength(0);
+            line.append(device.getName()).append(" [").append(device.getId()).append("] -> ");
+            System.out.println(device.appendStatus(line));
         }
     }
 
@@ -56,74 +223,246 @@ public class DeviceController {
     public void executeOnDeviceByName(String deviceName, String command, Object value)
             throws DeviceNotFoundException, DeviceOfflineException, InvalidOperationException {
 
-        SmartDevice device = findDeviceByName(deviceName);
+        byNameCalls.increment();
+        long start = metrics.startTiming();
+        CommandHandle handle;
+        try {
+            handle = resolveCommandByName(deviceName, command, value);
+        } catch (DeviceNotFoundException | InvalidOperationException e) {
+            record(byNameLatency, MetricsRegistry.elapsedSince(start));
+            countFailure("executeOnDeviceByName", e);
+            throw e;
+        }
+        try {
+            execute(handle, start, byNameLatency);
+        } catch (DeviceOfflineException e) {
+            countFailure("executeOnDeviceByName", e);
+            throw e;
+        }
+    }
 
-        if (!device.isOnline()) {
-            throw new DeviceOfflineException(device.getName());
+    // Keep the old method for backward compatibility with automation rules
+    public void executeOnDevice(String deviceId, String command, Object value)
+            throws DeviceNotFoundException, DeviceOfflineException, InvalidOperationException {
+
+        byIdCalls.increment();
+        long start = metrics.startTiming();
+        CommandHandle handle;
+        try {
+            handle = resolveCommand(deviceId, command, value);
+        } catch (DeviceNotFoundException | InvalidOperationException e) {
+            record(byIdLatency, MetricsRegistry.elapsedSince(start));
+            countFailure("executeOnDevice", e);
+            throw e;
+        }
+        try {
+            execute(handle, start, byIdLatency);
+        } catch (DeviceOfflineException e) {
+            countFailure("executeOnDevice", e);
+            throw e;
         }
+    }
 
-        if (command.equalsIgnoreCase("turn_on")) {
-            device.turnOn();
-            return;
-        } else if (command.equalsIgnoreCase("turn_off")) {
-            device.turnOff();
-            return;
+    private static long elapsed(long start, long end) {
+        return start == MetricsRegistry.UNTIMED ? MetricsRegistry.UNTIMED : end - start;
+    }
+
+    private static void record(LatencyHistogram histogram, long elapsed) {
+        if (histogram != null && elapsed != MetricsRegistry.UNTIMED) {
+            histogram.record(elapsed);
         }
+    }
 
-        if (device instanceof Controllable) {
-            Controllable c = (Controllable) device;
-            c.control(command, value);
-        } else {
-            throw new InvalidOperationException(command, "Device '" + device.getName() + "' is not controllable");
+    // Failures are rare, so building the counter name here is fine
+    private void countFailure(String operation, Exception e) {
+        metrics.counter(operation + ".failed." + e.getClass().getSimpleName()).increment();
+    }
+
+    // Resolve a command once, then run it repeatedly through execute(CommandHandle)
+    public CommandHandle resolveCommand(String deviceId, String command, Object value)
+            throws DeviceNotFoundException, InvalidOperationException {
+        return CommandHandle.resolve(findDeviceById(deviceId), command, value);
+    }
+
+    public CommandHandle resolveCommandByName(String deviceName, String command, Object value)
+            throws DeviceNotFoundException, InvalidOperationException {
+        return CommandHandle.resolve(findDeviceByName(deviceName), command, value);
+    }
+
+    // Returns once the command has taken effect and, with a journal, is durable
+    public void execute(CommandHandle command) throws DeviceOfflineException {
+        execute(command, metrics.startTiming(), null);
+    }
+
+    // Counts the command under its type and operation. When it was picked for timing it
+    // reads the clock once more at the end and charges the elapsed time there and to the
+    // caller's own histogram, if it passes one; the lookup in executeOnDevice/ByName is
+    // included, so a timed command costs two clock reads and an untimed one none.
+    private void execute(CommandHandle command, long start, LatencyHistogram caller) throws DeviceOfflineException {
+        SmartDevice device = command.getDevice();
+        DeviceOperation operation = command.getOperation();
+        boolean failed = true;
+        try {
+            syncJournal(executeNoSync(command, null));
+            failed = false;
+        } finally {
+            long elapsed = MetricsRegistry.elapsedSince(start);
+            commandMetrics.record(device, operation, elapsed, failed);
+            record(caller, elapsed);
         }
     }
 
-    // Keep the old method for backward compatibility with automation rules
-    public void executeOnDevice(String deviceId, String command, Object value)
-            throws DeviceNotFoundException, DeviceOfflineException, InvalidOperationException {
+    // Executes and journals the command without waiting for the fsync. Callers issuing
+    // a batch use this and call syncJournal() once at the end, so the batch shares a sync.
+    long executeNoSync(CommandHandle command, String ruleId) throws DeviceOfflineException {
+        CommandJournal current = journal;
+        if (current == null) {
+            command.execute();
+            return 0L;
+        }
+        // Journal under the device monitor so the record order matches the execution order
+        synchronized (command.getDevice()) {
+            command.execute();
+            return current.append(command, ruleId);
+        }
+    }
 
-        SmartDevice device = findDeviceById(deviceId);
+    void syncJournal() {
+        CommandJournal current = journal;
+        if (current != null) {
+            current.awaitDurable(current.getLastSequence());
+        }
+    }
 
-        if (!device.isOnline()) {
-            throw new DeviceOfflineException(device.getName());
+    private void syncJournal(long sequence) {
+        CommandJournal current = journal;
+        if (current != null && sequence > 0L) {
+            current.awaitDurable(sequence);
         }
+    }
 
-        if (command.equalsIgnoreCase("turn_on")) {
-            device.turnOn();
-            return;
-        } else if (command.equalsIgnoreCase("turn_off")) {
-            device.turnOff();
-            return;
+    // Asynchronous variants: commands to one device run in submission order, lookup and
+    // validation errors come back as an already failed future
+    public CompletableFuture<SmartDevice> executeOnDeviceAsync(String deviceId, String command, Object value) {
+        try {
+            return executeAsync(resolveCommand(deviceId, command, value));
+        } catch (DeviceNotFoundException | InvalidOperationException e) {
+            return CompletableFuture.failedFuture(e);
         }
+    }
 
-        if (device instanceof Controllable) {
-            Controllable c = (Controllable) device;
-            c.control(command, value);
-        } else {
-            throw new InvalidOperationException(command, "Device is not controllable");
+    public CompletableFuture<SmartDevice> executeOnDeviceByNameAsync(String deviceName, String command, Object value) {
+        try {
+            return executeAsync(resolveCommandByName(deviceName, command, value));
+        } catch (DeviceNotFoundException | InvalidOperationException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
+    // A home in a HomeRegistry runs the command on its shard, behind the work already
+    // queued there, rather than on the async executor's threads
+    public CompletableFuture<SmartDevice> executeAsync(final CommandHandle command) {
+        Executor executor = homeExecutor;
+        if (executor == null) {
+            return asyncExecutor.submit(command);
+        }
+        final CompletableFuture<SmartDevice> result = new CompletableFuture<SmartDevice>();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    execute(command);
+                    result.complete(command.getDevice());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+        return result;
+    }
+
+    // Bulk commands: fan out over a room, several rooms or the whole home. Failures are
+    // collected per device in the result; only an unknown command is thrown up front.
+    public BulkResult executeOnRoom(Room room, String command, Object value) throws InvalidOperationException {
+        return executeOnRooms(Collections.singletonList(room), command, value);
+    }
+
+    public BulkResult executeOnRooms(Collection<Room> rooms, String command, Object value)
+            throws InvalidOperationException {
+        List<SmartDevice> devices = new ArrayList<SmartDevice>();
+        for (Room room : rooms) {
+            devices.addAll(room.getAllDevices());
+        }
+        return executeBulk(devices, command, value);
+    }
+
+    public BulkResult executeOnHome(String command, Object value) throws InvalidOperationException {
+        return executeBulk(home.getAllDevices(), command, value);
+    }
+
+    private BulkResult executeBulk(List<SmartDevice> devices, String command, Object value)
+            throws InvalidOperationException {
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null) {
+            throw new InvalidOperationException(command, "Unknown command");
+        }
+        BulkResult result = BulkCommand.run(devices.toArray(new SmartDevice[0]), operation, value,
+                this, ForkJoinPool.commonPool());
+        syncJournal();
+        return result;
+    }
+
     // Automation event handling
     public void handleEvent(String triggerDeviceId, String condition) {
-        for (AutomationRule rule : rules) {
-            if (!rule.isEnabled()) {
-                continue;
+        eventCalls.increment();
+        long start = metrics.startTiming();
+        long now = start;
+        for (AutomationRule rule : ruleIndex.lookup(triggerDeviceId, condition)) {
+            if (rule.isEnabled()) {
+                now = fireRule(rule, now);
             }
-            if (rule.getTriggerDeviceId().equals(triggerDeviceId)
-                    && rule.getTriggerCondition().equalsIgnoreCase(condition)) {
-                try {
-                    SmartDevice target = findDeviceById(rule.getActionDeviceId());
-                    if (rule.getAction().equalsIgnoreCase("turn_on")) {
-                        target.turnOn();
-                    } else if (rule.getAction().equalsIgnoreCase("turn_off")) {
-                        target.turnOff();
-                    }
-                    System.out.println("Automation executed: " + rule.getName());
-                } catch (Exception e) {
-                    System.out.println("Failed to execute rule " + rule.getName() + ": " + e.getMessage());
-                }
+        }
+        if (journal != null) {
+            syncJournal();
+            if (start != MetricsRegistry.UNTIMED) {
+                now = System.nanoTime();
+            }
+        }
+        record(eventLatency, elapsed(start, now));
+    }
+
+    // Starts timing a batch of rule firings, see fireRule
+    long startTiming() {
+        return metrics.startTiming();
+    }
+
+    // Journaled but not synced; callers sync once after firing everything that was due.
+    // Takes the clock reading the firing starts at and returns the one it ended at, so
+    // consecutive firings share clock reads. A batch that was not sampled passes
+    // MetricsRegistry.UNTIMED through and reads no clock at all.
+    long fireRule(AutomationRule rule, long start) {
+        CommandHandle action = null;
+        try {
+            SmartDevice target = findDeviceById(rule.getActionDeviceId());
+            action = rule.getActionHandle();
+            if (action == null || action.getDevice() != target) {
+                action = CommandHandle.resolve(target, rule.getAction(), null);
+                rule.setActionHandle(action);
+            }
+            executeNoSync(action, rule.getId());
+            long end = start == MetricsRegistry.UNTIMED ? start : System.nanoTime();
+            ruleMetrics.record(target, action.getOperation(), elapsed(start, end), false);
+            rulesFired.increment();
+            EventLog.info(rule.getId(), rule.getName(), "Automation executed: {name}", null);
+            return end;
+        } catch (Exception e) {
+            long end = start == MetricsRegistry.UNTIMED ? start : System.nanoTime();
+            if (action != null) {
+                ruleMetrics.record(action.getDevice(), action.getOperation(), elapsed(start, end), true);
             }
+            rulesFailed.increment();
+            countFailure("rules", e);
+            EventLog.warn(rule.getId(), rule.getName(), "Failed to execute rule {name}: {}", e.getMessage());
+            return end;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package smarthome;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Each operation has a fixed code for persisted formats such as the command journal.
+// Codes never change or get reused; add new operations with new codes.
+public enum DeviceOperation {
+
+    TURN_ON("turn_on", ArgumentType.NONE, 0),
+    TURN_OFF("turn_off", ArgumentType.NONE, 1),
+    BRIGHTNESS("brightness", ArgumentType.INT, 2),
+    COLOR("color", ArgumentType.TEXT, 3),
+    TEMPERATURE("temperature", ArgumentType.DOUBLE, 4),
+    MODE("mode", ArgumentType.TEXT, 5),
+    VOLUME("volume", ArgumentType.INT, 6),
+    CHANNEL("channel", ArgumentType.INT, 7),
+    INPUT("input", ArgumentType.TEXT, 8),
+    RECORD("record", ArgumentType.BOOLEAN, 9),
+    RESOLUTION("resolution", ArgumentType.TEXT, 10),
+    NIGHT_VISION("nightvision", ArgumentType.BOOLEAN, 11),
+    LOCK("lock", ArgumentType.NONE, 12),
+    UNLOCK("unlock", ArgumentType.TEXT, 13),
+    SET_CODE("setcode", ArgumentType.TEXT, 14);
+
+    public enum ArgumentType {
+        NONE, INT, DOUBLE, BOOLEAN, TEXT
+    }
+
+    private static final Map<String, DeviceOperation> BY_COMMAND = new HashMap<String, DeviceOperation>();
+    private static final Map<Integer, DeviceOperation> BY_CODE = new HashMap<Integer, DeviceOperation>();
+
+    static {
+        for (DeviceOperation op : values()) {
+            BY_COMMAND.put(op.command, op);
+            if (BY_CODE.put(op.code, op) != null) {
+                throw new ExceptionInInitializerError("Duplicate operation code " + op.code);
+            }
+        }
+    }
+
+    private final String command;
+    private final ArgumentType argumentType;
+    private final int code;
+
+    DeviceOperation(String command, ArgumentType argumentType, int code) {
+        this.command = command;
+        this.argumentType = argumentType;
+        this.code = code;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public ArgumentType getArgumentType() {
+        return argumentType;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    // Null for a code no operation has
+    public static DeviceOperation fromCode(int code) {
+        return BY_CODE.get(code);
+    }
+
+    // Case-insensitive lookup of a command name, null when unknown
+    public static DeviceOperation fromCommand(String command) {
+        if (command == null) {
+            return null;
+        }
+        return BY_COMMAND.get(command.toLowerCase(Locale.ROOT));
+    }
+}
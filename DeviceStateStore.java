@@ -0,0 +1,341 @@
+package smarthome;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Columnar scan index over the primitive state of a large fleet of devices. Each
+// attached device gets one slot; power, online and lock state are bits in shared words,
+// brightness, volume and channel are int columns, and thermostat temperatures are
+// double columns, so whole-fleet scans walk a few dense arrays instead of chasing one
+// object per device.
+//
+// The devices stay the source of truth and know nothing about the store. It is kept
+// up to date from the outside: track(home) follows the home's StateChangeBus, and
+// update(device) re-copies one device, e.g. one that is not in a home. Like any bus
+// listener it lags the devices by the changes still being delivered. It adds the
+// column bytes per slot on top of the devices' own footprint.
+//
+// Bits are set with a CAS since 64 devices share a word; column cells are written with
+// release and read with acquire semantics. The scans read plainly and may miss a write
+// that is still in flight, like any unlocked read of live state.
+//
+// The capacity is fixed up front: growing would mean swapping arrays under concurrent
+// readers. Slots are not reused.
+public final class DeviceStateStore {
+
+    private static final Set<StateChange.Type> TRACKED = EnumSet.of(StateChange.Type.POWER,
+            StateChange.Type.ONLINE, StateChange.Type.BRIGHTNESS, StateChange.Type.VOLUME,
+            StateChange.Type.CHANNEL, StateChange.Type.LOCKED, StateChange.Type.TARGET_TEMPERATURE,
+            StateChange.Type.CURRENT_TEMPERATURE);
+
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    private final int capacity;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final Map<SmartDevice, Integer> slots = new ConcurrentHashMap<SmartDevice, Integer>();
+    private final byte[] types;
+    private final AtomicLongArray on;
+    private final AtomicLongArray online;
+    private final AtomicLongArray locked;
+    private final int[] brightness;
+    private final int[] volume;
+    private final int[] channel;
+    private final double[] targetTemperature;
+    private final double[] currentTemperature;
+
+    public DeviceStateStore(int capacity) {
+        this.capacity = capacity;
+        int words = (capacity + 63) >>> 6;
+        this.types = new byte[capacity];
+        this.on = new AtomicLongArray(words);
+        this.online = new AtomicLongArray(words);
+        this.locked = new AtomicLongArray(words);
+        this.brightness = new int[capacity];
+        this.volume = new int[capacity];
+        this.channel = new int[capacity];
+        this.targetTemperature = new double[capacity];
+        this.currentTemperature = new double[capacity];
+    }
+
+    // Gives the device a slot and copies its current state there
+    public int attach(SmartDevice device) {
+        synchronized (device) {
+            if (slots.containsKey(device)) {
+                throw new IllegalStateException(device.getId() + " is already in this store");
+            }
+            int slot = allocated.getAndIncrement();
+            if (slot >= capacity) {
+                allocated.decrementAndGet();
+                throw new IllegalStateException("Device state store is full (" + capacity + " slots)");
+            }
+            types[slot] = (byte) DeviceType.of(device).ordinal();
+            copy(device, slot);
+            slots.put(device, slot);
+            return slot;
+        }
+    }
+
+    // Attaches every device of the home and follows its state changes. Subscribing first
+    // means a change either lands before the copy under the device monitor or is
+    // delivered after it. Devices added to the home later need attach().
+    public StateChangeBus.Subscription track(Home home) {
+        StateChangeBus.Subscription subscription = home.getStateChangeBus().subscribe(null, null, TRACKED,
+                new StateChangeBus.Listener() {
+                    public void onStateChange(StateChange change) {
+                        apply(change);
+                    }
+                });
+        for (SmartDevice device : home.getAllDevices()) {
+            if (!slots.containsKey(device)) {
+                attach(device);
+            }
+        }
+        return subscription;
+    }
+
+    // Re-copies one device's state; false when it is not in this store
+    public boolean update(SmartDevice device) {
+        Integer slot = slots.get(device);
+        if (slot == null) {
+            return false;
+        }
+        synchronized (device) {
+            copy(device, slot);
+        }
+        return true;
+    }
+
+    void apply(StateChange change) {
+        Integer slot = slots.get(change.getDevice());
+        if (slot == null) {
+            return;
+        }
+        switch (change.getType()) {
+            case POWER:
+                setOn(slot, change.getBooleanValue());
+                break;
+            case ONLINE:
+                setOnline(slot, change.getBooleanValue());
+                break;
+            case BRIGHTNESS:
+                setBrightness(slot, change.getIntValue());
+                break;
+            case VOLUME:
+                setVolume(slot, change.getIntValue());
+                break;
+            case CHANNEL:
+                setChannel(slot, change.getIntValue());
+                break;
+            case LOCKED:
+                setLocked(slot, change.getBooleanValue());
+                break;
+            case TARGET_TEMPERATURE:
+                setTargetTemperature(slot, change.getDoubleValue());
+                break;
+            case CURRENT_TEMPERATURE:
+                setCurrentTemperature(slot, change.getDoubleValue());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void copy(SmartDevice device, int slot) {
+        setOn(slot, device.isOn());
+        setOnline(slot, device.isOnline());
+        if (device instanceof Light) {
+            setBrightness(slot, ((Light) device).getBrightness());
+        } else if (device instanceof SmartTV) {
+            setVolume(slot, ((SmartTV) device).getVolume());
+            setChannel(slot, ((SmartTV) device).getChannel());
+        } else if (device instanceof Thermostat) {
+            setTargetTemperature(slot, ((Thermostat) device).getTargetTemperature());
+            setCurrentTemperature(slot, ((Thermostat) device).getCurrentTemperature());
+        } else if (device instanceof SmartLock) {
+            setLocked(slot, ((SmartLock) device).isLocked());
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return Math.min(allocated.get(), capacity);
+    }
+
+    // Column bytes per slot, bitsets rounded up to whole words
+    public long getColumnBytes() {
+        long words = (capacity + 63) >>> 6;
+        return capacity * (1L + 3 * 4 + 2 * 8) + 3 * words * 8;
+    }
+
+    boolean isOn(int slot) {
+        return bit(on, slot);
+    }
+
+    void setOn(int slot, boolean value) {
+        setBit(on, slot, value);
+    }
+
+    boolean isOnline(int slot) {
+        return bit(online, slot);
+    }
+
+    void setOnline(int slot, boolean value) {
+        setBit(online, slot, value);
+    }
+
+    boolean isLocked(int slot) {
+        return bit(locked, slot);
+    }
+
+    void setLocked(int slot, boolean value) {
+        setBit(locked, slot, value);
+    }
+
+    int getBrightness(int slot) {
+        return (int) INTS.getAcquire(brightness, slot);
+    }
+
+    void setBrightness(int slot, int value) {
+        INTS.setRelease(brightness, slot, value);
+    }
+
+    int getVolume(int slot) {
+        return (int) INTS.getAcquire(volume, slot);
+    }
+
+    void setVolume(int slot, int value) {
+        INTS.setRelease(volume, slot, value);
+    }
+
+    int getChannel(int slot) {
+        return (int) INTS.getAcquire(channel, slot);
+    }
+
+    void setChannel(int slot, int value) {
+        INTS.setRelease(channel, slot, value);
+    }
+
+    double getTargetTemperature(int slot) {
+        return (double) DOUBLES.getAcquire(targetTemperature, slot);
+    }
+
+    void setTargetTemperature(int slot, double value) {
+        DOUBLES.setRelease(targetTemperature, slot, value);
+    }
+
+    double getCurrentTemperature(int slot) {
+        return (double) DOUBLES.getAcquire(currentTemperature, slot);
+    }
+
+    void setCurrentTemperature(int slot, double value) {
+        DOUBLES.setRelease(currentTemperature, slot, value);
+    }
+
+    // Fleet-wide scans
+
+    public int countOn() {
+        return countBits(on);
+    }
+
+    public int countOnline() {
+        return countBits(online);
+    }
+
+    public int countOn(DeviceType type) {
+        byte code = (byte) type.ordinal();
+        int n = size();
+        int count = 0;
+        for (int word = 0; word << 6 < n; word++) {
+            long bits = on.get(word);
+            while (bits != 0L) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (types[slot] == code) {
+                    count++;
+                }
+                bits &= bits - 1;
+            }
+        }
+        return count;
+    }
+
+    // Locks that are currently open
+    public int countUnlocked() {
+        byte code = (byte) DeviceType.LOCK.ordinal();
+        int n = size();
+        int count = 0;
+        for (int slot = 0; slot < n; slot++) {
+            if (types[slot] == code && !isLocked(slot)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Mean brightness of the lights that are on, 0 when none are
+    public double getMeanBrightnessOn() {
+        byte code = (byte) DeviceType.LIGHT.ordinal();
+        int n = size();
+        long sum = 0L;
+        int count = 0;
+        for (int word = 0; word << 6 < n; word++) {
+            long bits = on.get(word);
+            while (bits != 0L) {
+                int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                if (types[slot] == code) {
+                    sum += brightness[slot];
+                    count++;
+                }
+                bits &= bits - 1;
+            }
+        }
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    // Sum of |target - current| over every thermostat slot, on or off
+    public double getTotalTemperatureGap() {
+        byte code = (byte) DeviceType.THERMOSTAT.ordinal();
+        int n = size();
+        double total = 0.0;
+        for (int slot = 0; slot < n; slot++) {
+            if (types[slot] == code) {
+                total += Math.abs(targetTemperature[slot] - currentTemperature[slot]);
+            }
+        }
+        return total;
+    }
+
+    private int countBits(AtomicLongArray bits) {
+        int words = (size() + 63) >>> 6;
+        int count = 0;
+        for (int word = 0; word < words; word++) {
+            count += Long.bitCount(bits.get(word));
+        }
+        return count;
+    }
+
+    private static boolean bit(AtomicLongArray bits, int slot) {
+        return (bits.get(slot >>> 6) & (1L << slot)) != 0L;
+    }
+
+    private static void setBit(AtomicLongArray bits, int slot, boolean value) {
+        int word = slot >>> 6;
+        long mask = 1L << slot;
+        while (true) {
+            long current = bits.get(word);
+            long next = value ? current | mask : current & ~mask;
+            if (current == next || bits.compareAndSet(word, current, next)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package smarthome;
+
+// The concrete device classes, for code that keys data by kind of device
+public enum DeviceType {
+    LIGHT("light"),
+    THERMOSTAT("thermostat"),
+    TV("tv"),
+    CAMERA("camera"),
+    LOCK("lock"),
+    MOTION_SENSOR("motion_sensor"),
+    OTHER("device");
+
+    private final String label;
+
+    DeviceType(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public static DeviceType of(SmartDevice device) {
+        if (device instanceof Light) {
+            return LIGHT;
+        } else if (device instanceof Thermostat) {
+            return THERMOSTAT;
+        } else if (device instanceof SmartTV) {
+            return TV;
+        } else if (device instanceof SecurityCamera) {
+            return CAMERA;
+        } else if (device instanceof SmartLock) {
+            return LOCK;
+        } else if (device instanceof MotionSensor) {
+            return MOTION_SENSOR;
+        }
+        return OTHER;
+    }
+}
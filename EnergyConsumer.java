@@ -2,5 +2,5 @@ package smarthome;
 
 public interface EnergyConsumer {
     double getEnergyConsumption();  // watts
-    double getDailyUsage();         // kWh per day (approx)
+    double getDailyUsage();         // kWh over the last 24 hours
 }
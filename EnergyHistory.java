@@ -0,0 +1,291 @@
+package smarthome;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+// Wattage history per device. Every change of a device's draw is recorded as a
+// (time, watts) sample in a small primitive ring, and the energy between samples
+// is folded into minute, hour and day rollups as it accrues. Queries integrate
+// the raw samples exactly while they reach back far enough and fall back to the
+// finest rollup that still covers the interval.
+//
+// Memory per device is capped at roughly 2.5 KB (32 samples, 2 hours of minutes,
+// 2 days of hours, a year of days), so a year of history for 100k devices stays
+// under 250 MB regardless of how often devices change.
+public class EnergyHistory {
+
+    public enum Resolution {
+        MINUTE(60_000L, 120),
+        HOUR(3_600_000L, 48),
+        DAY(86_400_000L, 366);
+
+        private final long widthMillis;
+        private final int retained;
+
+        Resolution(long widthMillis, int retained) {
+            this.widthMillis = widthMillis;
+            this.retained = retained;
+        }
+
+        public long getWidthMillis() {
+            return widthMillis;
+        }
+
+        public int getRetainedBuckets() {
+            return retained;
+        }
+    }
+
+    static final int RAW_SAMPLES = 32;
+    private static final double MILLIS_PER_HOUR = 3_600_000.0;
+
+    private static final LongSupplier SYSTEM_CLOCK = new LongSupplier() {
+        public long getAsLong() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final Map<String, Series> series;
+    private final LongSupplier clock;
+
+    public EnergyHistory() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public EnergyHistory(LongSupplier clock) {
+        this(clock, 16);
+    }
+
+    EnergyHistory(int expectedDevices) {
+        this(SYSTEM_CLOCK, expectedDevices);
+    }
+
+    private EnergyHistory(LongSupplier clock, int expectedDevices) {
+        this.series = new ConcurrentHashMap<String, Series>(expectedDevices);
+        this.clock = clock;
+    }
+
+    public void record(String deviceId, double watts) {
+        record(deviceId, clock.getAsLong(), watts);
+    }
+
+    // Samples are expected in time order; an older timestamp is treated as "now"
+    public void record(String deviceId, long timestampMillis, double watts) {
+        Series s = series.get(deviceId);
+        if (s == null) {
+            Series created = new Series();
+            s = series.putIfAbsent(deviceId, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        s.record(timestampMillis, watts);
+    }
+
+    // Energy used by the device in [fromMillis, toMillis), in kWh
+    public double getEnergyKWh(String deviceId, long fromMillis, long toMillis) {
+        Series s = series.get(deviceId);
+        if (s == null || toMillis <= fromMillis) {
+            return 0.0;
+        }
+        return s.energyWh(fromMillis, toMillis, clock.getAsLong()) / 1000.0;
+    }
+
+    // kWh per bucket for `count` consecutive buckets starting at the one containing fromMillis
+    public double[] getUsageKWh(String deviceId, Resolution resolution, long fromMillis, int count) {
+        double[] usage = new double[count];
+        long start = Math.floorDiv(fromMillis, resolution.widthMillis) * resolution.widthMillis;
+        for (int i = 0; i < count; i++) {
+            long bucketStart = start + i * resolution.widthMillis;
+            usage[i] = getEnergyKWh(deviceId, bucketStart, bucketStart + resolution.widthMillis);
+        }
+        return usage;
+    }
+
+    public int getDeviceCount() {
+        return series.size();
+    }
+
+    public void forget(String deviceId) {
+        series.remove(deviceId);
+    }
+
+    private static final class Series {
+        // Raw samples, oldest at (next - count) modulo the ring size. The ring and the
+        // rollups are only allocated once the device changes for the first time, so a
+        // device that keeps a constant draw costs just the scalar fields below.
+        private long[] times;
+        private float[] watts;
+        private int next;
+        private int count;
+
+        private Rollup minutes;
+        private Rollup hours;
+        private Rollup days;
+
+        private long firstTime = Long.MIN_VALUE;
+        private long lastTime = Long.MIN_VALUE;
+        private double lastWatts;
+
+        synchronized void record(long time, double newWatts) {
+            if (lastTime == Long.MIN_VALUE) {
+                firstTime = time;
+                lastTime = time;
+                lastWatts = newWatts;
+                return;
+            }
+            if (time < lastTime) {
+                time = lastTime;
+            }
+            if (times == null) {
+                times = new long[RAW_SAMPLES];
+                watts = new float[RAW_SAMPLES];
+                minutes = new Rollup(Resolution.MINUTE);
+                hours = new Rollup(Resolution.HOUR);
+                days = new Rollup(Resolution.DAY);
+                push(lastTime, lastWatts);
+            }
+            accrue(lastTime, time, lastWatts);
+            push(time, newWatts);
+            lastTime = time;
+            lastWatts = newWatts;
+        }
+
+        private void push(long time, double w) {
+            times[next] = time;
+            watts[next] = (float) w;
+            next = (next + 1) % RAW_SAMPLES;
+            if (count < RAW_SAMPLES) {
+                count++;
+            }
+        }
+
+        synchronized double energyWh(long from, long to, long now) {
+            if (lastTime == Long.MIN_VALUE) {
+                return 0.0;
+            }
+            if (times == null) {
+                return overlapWh(lastTime, Math.max(lastTime, now), lastWatts, from, to);
+            }
+            double wh;
+            long oldestRaw = times[(next - count + RAW_SAMPLES) % RAW_SAMPLES];
+            boolean rawComplete = count < RAW_SAMPLES || from >= oldestRaw;
+            if (rawComplete) {
+                wh = rawWh(from, to, now);
+            } else if (minutes.covers(from)) {
+                wh = minutes.sumWh(from, to, firstTime, lastTime);
+            } else if (hours.covers(from)) {
+                wh = hours.sumWh(from, to, firstTime, lastTime);
+            } else {
+                wh = days.sumWh(from, to, firstTime, lastTime);
+            }
+            if (!rawComplete) {
+                // Rollups stop at the last sample; the open segment is still pending
+                wh += overlapWh(lastTime, Math.max(lastTime, now), lastWatts, from, to);
+            }
+            return wh;
+        }
+
+        private double rawWh(long from, long to, long now) {
+            double wh = 0.0;
+            int first = (next - count + RAW_SAMPLES) % RAW_SAMPLES;
+            for (int i = 0; i < count; i++) {
+                int idx = (first + i) % RAW_SAMPLES;
+                long start = times[idx];
+                long end = i + 1 < count ? times[(idx + 1) % RAW_SAMPLES] : Math.max(start, now);
+                wh += overlapWh(start, end, watts[idx], from, to);
+            }
+            return wh;
+        }
+
+        private void accrue(long from, long to, double w) {
+            if (to <= from) {
+                return;
+            }
+            minutes.add(from, to, w);
+            hours.add(from, to, w);
+            days.add(from, to, w);
+        }
+    }
+
+    private static double overlapWh(long start, long end, double w, long from, long to) {
+        long lo = Math.max(start, from);
+        long hi = Math.min(end, to);
+        return hi > lo ? w * (hi - lo) / MILLIS_PER_HOUR : 0.0;
+    }
+
+    // Fixed ring of per-bucket energy for one resolution; bucket ids are epoch / width
+    private static final class Rollup {
+        private final long width;
+        private final float[] wh;
+        private long newest = Long.MIN_VALUE;
+
+        Rollup(Resolution resolution) {
+            this.width = resolution.widthMillis;
+            this.wh = new float[resolution.retained];
+        }
+
+        void add(long from, long to, double w) {
+            long lastBucket = Math.floorDiv(to - 1, width);
+            advance(lastBucket);
+            long bucket = Math.floorDiv(from, width);
+            long oldestKept = lastBucket - wh.length + 1;
+            if (bucket < oldestKept) {
+                bucket = oldestKept;
+                from = bucket * width;
+            }
+            while (from < to) {
+                long end = Math.min(to, (bucket + 1) * width);
+                wh[slot(bucket)] += (float) (w * (end - from) / MILLIS_PER_HOUR);
+                from = end;
+                bucket++;
+            }
+        }
+
+        boolean covers(long from) {
+            return newest != Long.MIN_VALUE && Math.floorDiv(from, width) > newest - wh.length;
+        }
+
+        // Partial buckets are apportioned linearly over the part of the bucket that
+        // actually has data, i.e. clipped to [dataStart, dataEnd)
+        double sumWh(long from, long to, long dataStart, long dataEnd) {
+            from = Math.max(from, dataStart);
+            to = Math.min(to, dataEnd);
+            if (newest == Long.MIN_VALUE || to <= from) {
+                return 0.0;
+            }
+            long firstBucket = Math.max(Math.floorDiv(from, width), newest - wh.length + 1);
+            long lastBucket = Math.min(Math.floorDiv(to - 1, width), newest);
+            double total = 0.0;
+            for (long b = firstBucket; b <= lastBucket; b++) {
+                long start = Math.max(b * width, dataStart);
+                long end = Math.min(b * width + width, dataEnd);
+                long overlap = Math.min(to, end) - Math.max(from, start);
+                if (overlap > 0L) {
+                    total += wh[slot(b)] * ((double) overlap / (end - start));
+                }
+            }
+            return total;
+        }
+
+        private void advance(long bucket) {
+            if (newest == Long.MIN_VALUE) {
+                newest = bucket;
+                return;
+            }
+            if (bucket <= newest) {
+                return;
+            }
+            long gap = Math.min(bucket - newest, wh.length);
+            for (long i = 1; i <= gap; i++) {
+                wh[slot(newest + i)] = 0f;
+            }
+            newest = bucket;
+        }
+
+        private int slot(long bucket) {
+            return (int) Math.floorMod(bucket, (long) wh.length);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package smarthome;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous structured log for device activity. Producers copy their fields
+// (subject, operation, value) into a preallocated ring buffer slot and return;
+// a background thread renders and writes the entries. Nothing is formatted on
+// the caller's thread, and with Level.OFF a log call is a single comparison.
+public final class EventLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    // Receives entries on the drain thread; the entry is only valid during the call
+    public interface Sink {
+        void write(Entry entry);
+    }
+
+    public static final class Entry {
+        static final byte NO_VALUE = 0;
+        static final byte LONG_VALUE = 1;
+        static final byte DOUBLE_VALUE = 2;
+        static final byte TEXT_VALUE = 3;
+
+        volatile long sequence;
+        Level level;
+        long timestamp;
+        String subjectId;
+        String subjectName;
+        String operation;
+        byte valueKind;
+        long longValue;
+        double doubleValue;
+        String textValue;
+        byte secondKind;
+        long secondLong;
+        double secondDouble;
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getSubjectId() {
+            return subjectId;
+        }
+
+        public String getSubjectName() {
+            return subjectName;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public boolean hasValue() {
+            return valueKind != NO_VALUE;
+        }
+
+        public String getValue() {
+            switch (valueKind) {
+                case LONG_VALUE:
+                    return Long.toString(longValue);
+                case DOUBLE_VALUE:
+                    return Double.toString(doubleValue);
+                case TEXT_VALUE:
+                    return textValue;
+                default:
+                    return null;
+            }
+        }
+
+        // Only set by the two-value log calls, always numeric
+        public String getSecondValue() {
+            switch (secondKind) {
+                case LONG_VALUE:
+                    return Long.toString(secondLong);
+                case DOUBLE_VALUE:
+                    return Double.toString(secondDouble);
+                default:
+                    return null;
+            }
+        }
+
+        // Renders the entry the way the console shows it. An operation containing
+        // placeholders is a message template: "{name}" is the subject's name and each
+        // "{}" takes the next value, e.g. "{name} brightness set to {}%" gives
+        // "Lamp brightness set to 40%". Otherwise the entry reads "name operation value".
+        public StringBuilder appendTo(StringBuilder sb) {
+            if (operation.indexOf('{') < 0) {
+                if (subjectName != null) {
+                    sb.append(subjectName).append(' ');
+                }
+                sb.append(operation);
+                if (valueKind != NO_VALUE) {
+                    appendValue(sb.append(' '), valueKind, longValue, doubleValue, textValue);
+                }
+                return sb;
+            }
+            int values = 0;
+            int length = operation.length();
+            for (int i = 0; i < length; i++) {
+                char c = operation.charAt(i);
+                if (c == '{' && operation.startsWith("{}", i)) {
+                    if (values++ == 0) {
+                        appendValue(sb, valueKind, longValue, doubleValue, textValue);
+                    } else {
+                        appendValue(sb, secondKind, secondLong, secondDouble, null);
+                    }
+                    i++;
+                } else if (c == '{' && operation.startsWith("{name}", i)) {
+                    sb.append(subjectName);
+                    i += 5;
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb;
+        }
+
+        private static void appendValue(StringBuilder sb, byte kind, long l, double d, String text) {
+            switch (kind) {
+                case LONG_VALUE:
+                    sb.append(l);
+                    break;
+                case DOUBLE_VALUE:
+                    sb.append(d);
+                    break;
+                case TEXT_VALUE:
+                    sb.append(text);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void clear() {
+            subjectId = null;
+            subjectName = null;
+            operation = null;
+            textValue = null;
+        }
+    }
+
+    private static final int CAPACITY = 8192; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+
+    private static final Sink CONSOLE = new Sink() {
+        private final StringBuilder line = new StringBuilder(128);
+
+        public void write(Entry entry) {
+            line.setLength(0);
+            System.out.println(entry.appendTo(line));
+        }
+    };
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();   // next slot to claim
+    private static final AtomicLong head = new AtomicLong();   // next slot to drain
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile int threshold = Level.INFO.ordinal();
+    // Threads that only log warnings for now; log() looks them up while any exist
+    private static final ThreadLocal<Boolean> muted = new ThreadLocal<Boolean>();
+    private static volatile int mutedThreads;
+    private static volatile Sink sink = CONSOLE;
+    private static volatile boolean drainerWaiting;
+    private static final Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i;
+        }
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "event-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private EventLog() {
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    // Silent mode: every log call returns before touching the buffer
+    public static void setSilent(boolean silent) {
+        setLevel(silent ? Level.OFF : Level.INFO);
+    }
+
+    // Drops DEBUG and INFO entries from the calling thread until it is unmuted, e.g.
+    // while a journal replays commands whose log lines were written the first time
+    static synchronized void muteCurrentThread(boolean mute) {
+        if (mute == (muted.get() != null)) {
+            return;
+        }
+        if (mute) {
+            muted.set(Boolean.TRUE);
+            mutedThreads++;
+        } else {
+            muted.remove();
+            mutedThreads--;
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold && level != Level.OFF;
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink == null ? CONSOLE : newSink;
+    }
+
+    // Entries discarded because the ring was full
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static void info(SmartDevice device, String operation) {
+        log(Level.INFO, device.getId(), device.getName(), operation, Entry.NO_VALUE, 0L, 0.0, null);
+    }
+
+    public static void info(SmartDevice device, String operation, long value) {
+        log(Level.INFO, device.getId(), device.getName(), operation, Entry.LONG_VALUE, value, 0.0, null);
+    }
+
+    public static void info(SmartDevice device, String operation, double value) {
+        log(Level.INFO, device.getId(), device.getName(), operation, Entry.DOUBLE_VALUE, 0L, value, null);
+    }
+
+    public static void info(SmartDevice device, String operation, String value) {
+        log(Level.INFO, device.getId(), device.getName(), operation, Entry.TEXT_VALUE, 0L, 0.0, value);
+    }
+
+    public static void info(SmartDevice device, String operation, long value, long second) {
+        log(Level.INFO, device.getId(), device.getName(), operation, Entry.LONG_VALUE, value, 0.0, null,
+                Entry.LONG_VALUE, second, 0.0);
+    }
+
+    public static void info(SmartDevice device, String operation, String value, double second) {
+        log(Level.INFO, device.getId(), device.getName(), operation, Entry.TEXT_VALUE, 0L, 0.0, value,
+                Entry.DOUBLE_VALUE, 0L, second);
+    }
+
+    public static void info(String subjectId, String subjectName, String operation, String value) {
+        log(Level.INFO, subjectId, subjectName, operation,
+                value == null ? Entry.NO_VALUE : Entry.TEXT_VALUE, 0L, 0.0, value);
+    }
+
+    public static void warn(SmartDevice device, String operation) {
+        log(Level.WARN, device.getId(), device.getName(), operation, Entry.NO_VALUE, 0L, 0.0, null);
+    }
+
+    public static void warn(SmartDevice device, String operation, String value) {
+        log(Level.WARN, device.getId(), device.getName(), operation, Entry.TEXT_VALUE, 0L, 0.0, value);
+    }
+
+    public static void warn(String subjectId, String subjectName, String operation, String value) {
+        log(Level.WARN, subjectId, subjectName, operation,
+                value == null ? Entry.NO_VALUE : Entry.TEXT_VALUE, 0L, 0.0, value);
+    }
+
+    // Blocks until everything logged before this call has reached the sink
+    public static void flush() {
+        long target = tail.get();
+        while (head.get() < target) {
+            if (drainerWaiting) {
+                LockSupport.unpark(drainer);
+            }
+            Thread.yield();
+        }
+    }
+
+    private static void log(Level level, String subjectId, String subjectName, String operation,
+                            byte valueKind, long longValue, double doubleValue, String textValue) {
+        log(level, subjectId, subjectName, operation, valueKind, longValue, doubleValue, textValue,
+                Entry.NO_VALUE, 0L, 0.0);
+    }
+
+    private static void log(Level level, String subjectId, String subjectName, String operation,
+                            byte valueKind, long longValue, double doubleValue, String textValue,
+                            byte secondKind, long secondLong, double secondDouble) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        if (mutedThreads > 0 && level.ordinal() < Level.WARN.ordinal() && muted.get() != null) {
+            return;
+        }
+        Entry slot;
+        long pos;
+        while (true) {
+            pos = tail.get();
+            slot = ring[(int) (pos & MASK)];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                dropped.incrementAndGet(); // ring full, never block the device
+                return;
+            }
+        }
+        slot.level = level;
+        slot.timestamp = System.currentTimeMillis();
+        slot.subjectId = subjectId;
+        slot.subjectName = subjectName;
+        slot.operation = operation;
+        slot.valueKind = valueKind;
+        slot.longValue = longValue;
+        slot.doubleValue = doubleValue;
+        slot.textValue = textValue;
+        slot.secondKind = secondKind;
+        slot.secondLong = secondLong;
+        slot.secondDouble = secondDouble;
+        slot.sequence = pos + 1; // publish
+        if (drainerWaiting) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            long pos = head.get();
+            Entry slot = ring[(int) (pos & MASK)];
+            if (slot.sequence != pos + 1) {
+                drainerWaiting = true;
+                if (ring[(int) (pos & MASK)].sequence != pos + 1) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                drainerWaiting = false;
+                continue;
+            }
+            try {
+                sink.write(slot);
+            } catch (RuntimeException e) {
+                // A failing sink must not stop the drain thread
+            }
+            slot.clear();
+            slot.sequence = pos + CAPACITY;
+            head.set(pos + 1);
+        }
+    }
+}
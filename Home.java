@@ -3,7 +3,10 @@ package smarthome;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Home {
 
@@ -11,15 +14,64 @@ public class Home {
     private String address;
     private final Map<String, Room> rooms;
 
+    // Home-wide device index, kept in sync by Room.addDevice/removeDevice
+    private final Map<String, SmartDevice> devicesById;
+    private final Map<String, SmartDevice> devicesByName;
+    // Devices whose name was already taken when they were indexed, oldest first; only
+    // names held by more than one device have an entry. Guarded by this monitor.
+    private final Map<String, List<SmartDevice>> shadowedByName = new HashMap<String, List<SmartDevice>>();
+    // Set while a snapshot load defers the name index: devices indexed by id but not yet
+    // by name, in the order they were indexed. The first lookup by name or removal
+    // builds the name index from it. Guarded by this monitor.
+    private List<SmartDevice> unnamed;
+    private volatile boolean namesDeferred;
+    private final LongAdder energyMilliwatts = new LongAdder();
+    private final EnergyHistory energyHistory;
+    private final StateChangeBus stateChanges = new StateChangeBus();
+    private volatile DeviceController controller; // the one scheduled actions run through
+
     public Home(String name, String address) {
+        this(name, address, 16);
+    }
+
+    // Presized for a known device count, e.g. when loading a snapshot
+    Home(String name, String address, int expectedDevices) {
         this.name = name;
         this.address = address;
-        this.rooms = new HashMap<String, Room>();
+        this.rooms = new ConcurrentHashMap<String, Room>();
+        this.devicesById = new ConcurrentHashMap<String, SmartDevice>(expectedDevices);
+        this.devicesByName = new ConcurrentHashMap<String, SmartDevice>(expectedDevices);
+        this.energyHistory = new EnergyHistory(expectedDevices);
     }
 
     public void addRoom(Room room) {
-        rooms.put(room.getId(), room);
-        System.out.println("Added room: " + room.getName());
+        restoreRoom(room);
+        EventLog.info(null, name, "Added room: {}", room.getName());
+    }
+
+    // Lock order is room, then device, then home: the same order Room.addDevice uses.
+    // Used directly by HomeSnapshot, which logs one line for the whole load instead.
+    void restoreRoom(Room room) {
+        Room previous = rooms.put(room.getId(), room);
+        if (previous != null && previous != room) {
+            synchronized (previous) {
+                previous.setHome(null);
+                for (SmartDevice device : previous.getAllDevices()) {
+                    device.attachTo((Home) null);
+                    unindexDevice(device);
+                    if (room.getDevice(device.getId()) != device) {
+                        ScheduleIndex.shared().cancelAll(device);
+                    }
+                }
+            }
+        }
+        synchronized (room) {
+            room.setHome(this);
+            for (SmartDevice device : room.getAllDevices()) {
+                device.attachTo(this);
+                indexDevice(device);
+            }
+        }
     }
 
     public Room getRoom(String roomId) {
@@ -31,13 +83,96 @@ public class Home {
     }
 
     public SmartDevice findDevice(String deviceId) {
-        for (Room room : rooms.values()) {
-            SmartDevice d = room.getDevice(deviceId);
-            if (d != null) {
-                return d;
+        if (deviceId == null) {
+            return null;
+        }
+        return devicesById.get(deviceId);
+    }
+
+    // Case-insensitive lookup; when several devices share a name the first one added wins
+    public SmartDevice findDeviceByName(String deviceName) {
+        if (deviceName == null) {
+            return null;
+        }
+        if (namesDeferred) {
+            indexNames();
+        }
+        return devicesByName.get(normalizeName(deviceName));
+    }
+
+    public int getDeviceCount() {
+        return devicesById.size();
+    }
+
+    // For HomeSnapshot: devices indexed from now on get their name entries on first use
+    synchronized void deferNameIndex(int expectedDevices) {
+        if (unnamed == null) {
+            unnamed = new ArrayList<SmartDevice>(expectedDevices);
+            namesDeferred = true;
+        }
+    }
+
+    private synchronized void indexNames() {
+        List<SmartDevice> pending = unnamed;
+        if (pending == null) {
+            return;
+        }
+        unnamed = null;
+        for (SmartDevice device : pending) {
+            indexName(device);
+        }
+        namesDeferred = false;
+    }
+
+    synchronized void indexDevice(SmartDevice device) {
+        devicesById.put(device.getId(), device);
+        if (unnamed != null) {
+            unnamed.add(device);
+        } else {
+            indexName(device);
+        }
+    }
+
+    private void indexName(SmartDevice device) {
+        if (device.getName() != null) {
+            String key = normalizeName(device.getName());
+            SmartDevice holder = devicesByName.putIfAbsent(key, device);
+            if (holder != null && holder != device) {
+                List<SmartDevice> shadowed = shadowedByName.get(key);
+                if (shadowed == null) {
+                    shadowed = new ArrayList<SmartDevice>(2);
+                    shadowedByName.put(key, shadowed);
+                }
+                if (!shadowed.contains(device)) {
+                    shadowed.add(device);
+                }
             }
         }
-        return null;
+    }
+
+    synchronized void unindexDevice(SmartDevice device) {
+        indexNames();
+        devicesById.remove(device.getId(), device);
+        if (device.getName() == null) {
+            return;
+        }
+        String key = normalizeName(device.getName());
+        List<SmartDevice> shadowed = shadowedByName.get(key);
+        if (devicesByName.remove(key, device)) {
+            // The earliest remaining device with the same name takes over the entry
+            if (shadowed != null) {
+                devicesByName.put(key, shadowed.remove(0));
+            }
+        } else if (shadowed != null) {
+            shadowed.remove(device);
+        }
+        if (shadowed != null && shadowed.isEmpty()) {
+            shadowedByName.remove(key);
+        }
+    }
+
+    static String normalizeName(String deviceName) {
+        return deviceName.toLowerCase(Locale.ROOT);
     }
 
     public List<SmartDevice> getAllDevices() {
@@ -48,7 +183,18 @@ public class Home {
         return devices;
     }
 
+    public BulkResult turnAllOn() {
+        EventLog.info(null, name, "\n--- Turning on all devices in {name} ---", null);
+        return BulkCommand.run(devicesById.values(), DeviceOperation.TURN_ON, null);
+    }
+
+    public BulkResult turnAllOff() {
+        EventLog.info(null, name, "\n--- Turning off all devices in {name} ---", null);
+        return BulkCommand.run(devicesById.values(), DeviceOperation.TURN_OFF, null);
+    }
+
     public void showFullStatus() {
+        EventLog.flush();
         System.out.println("\n===============================");
         System.out.println(" HOME: " + name);
         System.out.println(" Address: " + address);
@@ -58,7 +204,13 @@ public class Home {
         }
     }
 
+    // O(1): kept up to date by the devices as their consumption changes
     public double getTotalEnergyConsumption() {
+        return energyMilliwatts.sum() / 1000.0;
+    }
+
+    // Full scan of every device, used to cross-check the running total
+    public double recomputeTotalEnergyConsumption() {
         double total = 0.0;
         for (SmartDevice device : getAllDevices()) {
             if (device instanceof EnergyConsumer) {
@@ -69,6 +221,37 @@ public class Home {
         return total;
     }
 
+    void addEnergy(long deltaMilliwatts) {
+        energyMilliwatts.add(deltaMilliwatts);
+    }
+
+    void recordEnergy(SmartDevice device, long milliwatts) {
+        energyHistory.record(device.getId(), milliwatts / 1000.0);
+    }
+
+    public EnergyHistory getEnergyHistory() {
+        return energyHistory;
+    }
+
+    // Changes made to any device in this home; see StateChangeBus
+    public StateChangeBus getStateChangeBus() {
+        return stateChanges;
+    }
+
+    DeviceController getController() {
+        return controller;
+    }
+
+    synchronized void attachController(DeviceController controller) {
+        this.controller = controller;
+    }
+
+    synchronized void detachController(DeviceController controller) {
+        if (this.controller == controller) {
+            this.controller = null;
+        }
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,527 @@
+package smarthome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// Many homes in one process, partitioned over a fixed set of worker shards (one
+// thread each, by default one per core). Every home has its own mailbox; work for
+// a home - commands, events, and its state change listeners - is queued there and
+// run by the shard that currently owns the home, one task at a time. A home is
+// therefore single-threaded and homes never contend with each other, while a
+// shard only ever holds a home that has work queued.
+//
+// The mailbox is what makes rebalancing cheap: moving a home just changes which
+// shard its mailbox is handed to next, so tasks keep their order across a move.
+//
+// Tasks run on the shard thread, so they must not block on work queued for their
+// own home (e.g. waiting on a future from submit(), or StateChangeBus.flush()).
+//
+// Everything else that used to run on its own threads goes through the mailbox too:
+// async commands, due device schedules, time rules and compound rule windows. The
+// registry starts a home's rule scheduler if nobody has, and stops it again.
+//
+// close() waits until every shard has stopped, then hands every home's state changes
+// back to the bus's default dispatcher and its timers back to their own threads, and
+// runs what was still queued on the closing thread. Submitted tasks still queued, and
+// any submitted afterwards, fail with an IllegalStateException. It cannot be called
+// from a shard.
+public class HomeRegistry {
+
+    public interface HomeTask<T> {
+        T run(DeviceController controller) throws Exception;
+    }
+
+    // Load figures for one shard; busy time is cumulative since the registry started
+    public static final class ShardStats {
+        private final int index;
+        private final int homes;
+        private final long tasks;
+        private final long busyNanos;
+        private final int queuedHomes;
+
+        ShardStats(int index, int homes, long tasks, long busyNanos, int queuedHomes) {
+            this.index = index;
+            this.homes = homes;
+            this.tasks = tasks;
+            this.busyNanos = busyNanos;
+            this.queuedHomes = queuedHomes;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getHomeCount() {
+            return homes;
+        }
+
+        public long getTaskCount() {
+            return tasks;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        // Homes with work waiting for this shard right now
+        public int getQueuedHomes() {
+            return queuedHomes;
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + index + ": " + homes + " homes, " + tasks + " tasks, "
+                    + busyNanos / 1_000_000L + " ms busy, " + queuedHomes + " queued";
+        }
+    }
+
+    // A shard thread moves on to the next home after this many tasks from one mailbox
+    private static final int MAILBOX_BATCH = 64;
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+    // A shard is hot when its busy time over the last period exceeds the average by this factor
+    private static final double HOT_FACTOR = 1.25;
+
+    private final Shard[] shards;
+    private final Map<String, HomeEntry> homes = new ConcurrentHashMap<String, HomeEntry>();
+    private ScheduledExecutorService rebalancer;
+    private volatile boolean closed;
+    private volatile boolean stopped; // every shard has exited, after closed
+    private int nextShard;
+
+    public HomeRegistry() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public HomeRegistry(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+            shards[i].thread.start();
+        }
+    }
+
+    // Registers a home under id, creating its controller. The home's state change
+    // listeners (including motion rules) move onto the home's mailbox as well. The
+    // registry owns that controller and closes it on unregister; a home that already
+    // has a controller should be registered with it instead, or its rules fire twice.
+    public synchronized DeviceController register(String homeId, Home home) {
+        DeviceController controller = new DeviceController(home);
+        try {
+            return register(homeId, controller, true);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            controller.close();
+            throw e;
+        }
+    }
+
+    // The caller keeps ownership of the controller
+    public synchronized DeviceController register(String homeId, DeviceController controller) {
+        return register(homeId, controller, false);
+    }
+
+    private DeviceController register(String homeId, DeviceController controller, boolean owned) {
+        if (closed) {
+            throw closedException();
+        }
+        if (homes.containsKey(homeId)) {
+            throw new IllegalArgumentException("Home already registered: " + homeId);
+        }
+        // New homes go to the shard with the fewest homes, ties broken round-robin
+        Shard target = shards[nextShard];
+        for (int i = 1; i < shards.length; i++) {
+            Shard candidate = shards[(nextShard + i) % shards.length];
+            if (candidate.homeCount < target.homeCount) {
+                target = candidate;
+            }
+        }
+        nextShard = (nextShard + 1) % shards.length;
+        HomeEntry entry = new HomeEntry(homeId, controller, owned, target);
+        target.homeCount++;
+        homes.put(homeId, entry);
+        controller.getHome().getStateChangeBus().setDispatcher(entry);
+        controller.setHomeExecutor(entry);
+        if (!controller.getScheduler().isRunning()) {
+            controller.getScheduler().start();
+            entry.startedScheduler = true;
+        }
+        return controller;
+    }
+
+    public synchronized void unregister(String homeId) {
+        HomeEntry entry = homes.remove(homeId);
+        if (entry != null) {
+            entry.shard.homeCount--;
+            entry.controller.getHome().getStateChangeBus().setDispatcher(null);
+            entry.controller.setHomeExecutor(null);
+            release(entry);
+        }
+    }
+
+    private static void release(HomeEntry entry) {
+        if (entry.ownsController) {
+            entry.controller.close();
+        } else if (entry.startedScheduler) {
+            entry.controller.getScheduler().shutdown();
+        }
+    }
+
+    public DeviceController getController(String homeId) {
+        HomeEntry entry = homes.get(homeId);
+        return entry == null ? null : entry.controller;
+    }
+
+    public int getHomeCount() {
+        return homes.size();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Index of the shard that currently runs the home, or -1 when it is unknown
+    public int getShardOf(String homeId) {
+        HomeEntry entry = homes.get(homeId);
+        return entry == null ? -1 : entry.shard.index;
+    }
+
+    // Runs the task on the home's shard after everything queued for it before
+    public <T> CompletableFuture<T> submit(String homeId, HomeTask<T> task) {
+        if (closed) {
+            return CompletableFuture.failedFuture(closedException());
+        }
+        HomeEntry entry = homes.get(homeId);
+        if (entry == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown home: " + homeId));
+        }
+        SubmittedTask<T> submitted = new SubmittedTask<T>(task, entry.controller);
+        entry.execute(submitted);
+        return submitted.result;
+    }
+
+    public CompletableFuture<Void> executeOnDevice(String homeId, final String deviceId, final String command,
+                                                   final Object value) {
+        return submit(homeId, new HomeTask<Void>() {
+            public Void run(DeviceController controller) throws Exception {
+                controller.executeOnDevice(deviceId, command, value);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> handleEvent(String homeId, final String triggerDeviceId, final String condition) {
+        return submit(homeId, new HomeTask<Void>() {
+            public Void run(DeviceController controller) {
+                controller.handleEvent(triggerDeviceId, condition);
+                return null;
+            }
+        });
+    }
+
+    public List<ShardStats> getShardStats() {
+        List<ShardStats> stats = new ArrayList<ShardStats>(shards.length);
+        for (Shard shard : shards) {
+            stats.add(new ShardStats(shard.index, shard.homeCount, shard.tasks, shard.busyNanos,
+                    shard.runQueue.size()));
+        }
+        return stats;
+    }
+
+    // Checks the shards' load every period and moves homes off a hot shard
+    public synchronized void startRebalancing(long periodMillis) {
+        if (rebalancer != null) {
+            return;
+        }
+        rebalancer = Executors.newSingleThreadScheduledExecutor(daemonThreads("home-rebalancer"));
+        rebalancer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                rebalance();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Compares each shard's busy time since the previous call. While the hottest
+    // shard exceeds the average by HOT_FACTOR, its busiest home that still fits in
+    // half the gap moves to the coldest shard. Returns how many homes moved.
+    public synchronized int rebalance() {
+        long[] load = new long[shards.length];
+        List<List<HomeEntry>> byShard = new ArrayList<List<HomeEntry>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<HomeEntry>());
+        }
+        long total = 0L;
+        for (HomeEntry entry : homes.values()) {
+            long busy = entry.busyNanos;
+            entry.windowNanos = busy - entry.lastBusyNanos;
+            entry.lastBusyNanos = busy;
+            load[entry.shard.index] += entry.windowNanos;
+            byShard.get(entry.shard.index).add(entry);
+            total += entry.windowNanos;
+        }
+        if (total == 0L || shards.length < 2) {
+            return 0;
+        }
+        double average = total / (double) shards.length;
+        Comparator<HomeEntry> busiestFirst = new Comparator<HomeEntry>() {
+            public int compare(HomeEntry a, HomeEntry b) {
+                return Long.compare(b.windowNanos, a.windowNanos);
+            }
+        };
+        int moved = 0;
+        for (int round = 0; round < homes.size(); round++) {
+            int hot = 0;
+            int cold = 0;
+            for (int i = 1; i < shards.length; i++) {
+                if (load[i] > load[hot]) {
+                    hot = i;
+                }
+                if (load[i] < load[cold]) {
+                    cold = i;
+                }
+            }
+            if (load[hot] <= average * HOT_FACTOR || byShard.get(hot).size() < 2) {
+                break;
+            }
+            long gap = load[hot] - load[cold];
+            List<HomeEntry> candidates = byShard.get(hot);
+            Collections.sort(candidates, busiestFirst);
+            HomeEntry pick = null;
+            for (HomeEntry entry : candidates) {
+                if (entry.windowNanos > 0L && entry.windowNanos <= gap / 2) {
+                    pick = entry;
+                    break;
+                }
+            }
+            if (pick == null) {
+                break; // every busy home is bigger than the imbalance it would fix
+            }
+            candidates.remove(pick);
+            byShard.get(cold).add(pick);
+            load[hot] -= pick.windowNanos;
+            load[cold] += pick.windowNanos;
+            shards[hot].homeCount--;
+            shards[cold].homeCount++;
+            pick.shard = shards[cold];
+            moved++;
+            EventLog.info(pick.id, null, "home moved to shard", Integer.toString(cold));
+        }
+        return moved;
+    }
+
+    // Shards finish the batch they are running and exit. Until they all have, work
+    // for a home stays in its mailbox; close() keeps waiting (warning every second)
+    // rather than run a home's tasks beside a shard that may still be running them.
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (Shard shard : shards) {
+                if (shard.thread == Thread.currentThread()) {
+                    throw new IllegalStateException("Home registry cannot be closed from its own shard");
+                }
+            }
+            closed = true;
+            if (rebalancer != null) {
+                rebalancer.shutdownNow();
+            }
+        }
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        boolean interrupted = false;
+        for (Shard shard : shards) {
+            while (shard.thread.isAlive()) {
+                try {
+                    shard.thread.join(1000L);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (shard.thread.isAlive()) {
+                    EventLog.warn(null, null, "waiting for home shard to stop:", shard.thread.getName());
+                }
+            }
+        }
+        // From here on a publish reaches the default dispatcher and timers run inline
+        for (HomeEntry entry : homes.values()) {
+            entry.controller.getHome().getStateChangeBus().setDispatcher(null);
+            entry.controller.setHomeExecutor(null);
+        }
+        stopped = true;
+        for (HomeEntry entry : homes.values()) {
+            entry.drainClosed();
+            release(entry);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("Home registry is closed");
+    }
+
+    // A submit() call waiting in a mailbox; it can be failed instead of run
+    private static final class SubmittedTask<T> implements Runnable {
+        final HomeTask<T> task;
+        final DeviceController controller;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        SubmittedTask(HomeTask<T> task, DeviceController controller) {
+            this.task = task;
+            this.controller = controller;
+        }
+
+        public void run() {
+            try {
+                result.complete(task.run(controller));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+
+    // One home's mailbox. scheduled is true from the moment the home is handed to a
+    // shard until that shard has drained it, so at most one thread ever runs its tasks.
+    private final class HomeEntry implements Executor {
+        final String id;
+        final DeviceController controller;
+        final boolean ownsController;
+        final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        boolean startedScheduler;  // set at register, under the registry lock
+        volatile Shard shard;
+        volatile long busyNanos;   // written by the running shard only
+        long lastBusyNanos;        // rebalance() bookkeeping, under the registry lock
+        long windowNanos;
+
+        HomeEntry(String id, DeviceController controller, boolean ownsController, Shard shard) {
+            this.id = id;
+            this.controller = controller;
+            this.ownsController = ownsController;
+            this.shard = shard;
+        }
+
+        public void execute(Runnable task) {
+            mailbox.offer(task);
+            if (closed) {
+                if (stopped) {
+                    drainClosed(); // close() may already have emptied this mailbox
+                } // else close() drains it once the shards are gone
+            } else if (scheduled.compareAndSet(false, true)) {
+                shard.enqueue(this);
+            }
+        }
+
+        // Once every shard has stopped: submitted tasks fail, and anything else queued
+        // here before the home was moved off the registry (state change delivery, a due
+        // schedule or rule, an async command) runs in order on the calling thread
+        void drainClosed() {
+            Runnable task;
+            while ((task = mailbox.poll()) != null) {
+                if (task instanceof SubmittedTask) {
+                    ((SubmittedTask<?>) task).result.completeExceptionally(closedException());
+                } else {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        EventLog.warn(id, null, "home task failed:", e.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Runs on the shard thread and charges the work to both the home and the shard
+        void drain(Shard runner) {
+            long start = System.nanoTime();
+            int ran = 0;
+            try {
+                Runnable task;
+                while (ran < MAILBOX_BATCH && (task = mailbox.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        EventLog.warn(id, null, "home task failed:", e.getMessage());
+                    }
+                    ran++;
+                }
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                busyNanos += elapsed;
+                runner.busyNanos += elapsed;
+                runner.tasks += ran;
+                scheduled.set(false);
+            }
+            // Re-read shard: if the home moved, the rest of its work goes to the new owner
+            if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+                shard.enqueue(this);
+            }
+        }
+    }
+
+    private final class Shard {
+        final int index;
+        final ConcurrentLinkedQueue<HomeEntry> runQueue = new ConcurrentLinkedQueue<HomeEntry>();
+        final Thread thread;
+        volatile boolean waiting;
+        volatile long tasks;       // written by this shard's thread only
+        volatile long busyNanos;
+        volatile int homeCount;    // written under the registry lock
+
+        Shard(int index) {
+            this.index = index;
+            this.thread = daemonThreads("home-shard-" + index).newThread(new Runnable() {
+                public void run() {
+                    runLoop();
+                }
+            });
+        }
+
+        void enqueue(HomeEntry entry) {
+            runQueue.offer(entry);
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void runLoop() {
+            while (!closed) {
+                HomeEntry entry = runQueue.poll();
+                if (entry == null) {
+                    waiting = true;
+                    if (runQueue.isEmpty() && !closed) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                entry.drain(this);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,475 @@
+package smarthome;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.List;
+
+// Binary snapshot of a home: rooms, devices with their state, and automation rules.
+//
+// Layout (big endian):
+//   header   magic "CASA", version, flags, saved-at millis, room/device/rule counts,
+//            journal sequence (version 2)
+//   home     name, address
+//   rooms    id, name, device count, then each device:
+//              type, id, name, flags (on, online, location == room id), [location],
+//              type-specific state (a lock stores the salt and SHA-256 digest of
+//              its access code from version 3 on, the plain code before)
+//   rules    kind, enabled, id, name, then trigger/condition (event rules),
+//            time of day/days (time rules) or condition text (compound rules),
+//            action device, action
+//   trailer  magic again, so a truncated file is rejected
+// Strings are an unsigned short byte length (0xFFFF for null) followed by UTF-8.
+//
+// Loading maps the file read-only and builds the objects straight from the
+// mapping, without per-device logging or command dispatch. Schedules, scenes,
+// the lock access log and energy history are not part of the snapshot.
+//
+// The journal sequence is the last CommandJournal record written before the save
+// started: every command up to it is reflected in the snapshot, and replaying the
+// journal on top of the snapshot starts after it.
+public final class HomeSnapshot {
+
+    static final int MAGIC = 0x43415341; // "CASA"
+    static final short VERSION = 3;
+
+    private static final int HEADER_SIZE_V1 = 4 + 2 + 2 + 8 + 4 + 4 + 4;
+    private static final int HEADER_SIZE = HEADER_SIZE_V1 + 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int NULL_STRING = 0xFFFF;
+
+    private static final byte LIGHT = 1;
+    private static final byte THERMOSTAT = 2;
+    private static final byte SMART_TV = 3;
+    private static final byte SECURITY_CAMERA = 4;
+    private static final byte SMART_LOCK = 5;
+    private static final byte MOTION_SENSOR = 6;
+
+    private static final byte FLAG_ON = 1;
+    private static final byte FLAG_ONLINE = 2;
+    private static final byte FLAG_ROOM_LOCATION = 4;
+
+    private static final byte EVENT_RULE = 1;
+    private static final byte TIME_RULE = 2;
+    private static final byte COMPOUND_RULE = 3;
+
+    private HomeSnapshot() {
+    }
+
+    // Writes to a temporary file next to the target and moves it into place, so an
+    // interrupted save never leaves a half-written snapshot behind. Returns the journal
+    // sequence recorded in the snapshot (0 without a journal).
+    public static long save(DeviceController controller, Path path) throws IOException {
+        Home home = controller.getHome();
+        CommandJournal journal = controller.getJournal();
+        long journalSequence = journal == null ? 0L : journal.getLastSequence();
+        Path absolute = path.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        Writer out = new Writer(channel);
+        int roomCount = 0;
+        int deviceCount = 0;
+        int ruleCount = 0;
+        try {
+            out.skip(HEADER_SIZE);
+            out.putString(home.getName());
+            out.putString(home.getAddress());
+            for (Room room : home.getAllRooms()) {
+                List<SmartDevice> devices = room.getAllDevices();
+                out.putString(room.getId());
+                out.putString(room.getName());
+                out.putInt(devices.size());
+                for (SmartDevice device : devices) {
+                    synchronized (device) {
+                        writeDevice(out, room, device, true);
+                    }
+                }
+                roomCount++;
+                deviceCount += devices.size();
+            }
+            for (AutomationRule rule : controller.getRules()) {
+                writeRule(out, rule);
+                ruleCount++;
+            }
+            out.ensure(4);
+            out.buffer.putInt(MAGIC);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                    .putLong(System.currentTimeMillis())
+                    .putInt(roomCount).putInt(deviceCount).putInt(ruleCount)
+                    .putLong(journalSequence);
+            header.flip();
+            long position = 0L;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        EventLog.info(null, home.getName(), "saved snapshot", deviceCount + " devices");
+        return journalSequence;
+    }
+
+    public static DeviceController load(Path path) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE_V1 + 4) {
+                throw new IOException("Not a home snapshot: " + path);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + path);
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        }
+        try {
+            return read(new Reader(in), path);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated home snapshot: " + path);
+        }
+    }
+
+    private static DeviceController read(Reader in, Path path) throws IOException {
+        ByteBuffer buffer = in.buffer;
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a home snapshot: " + path);
+        }
+        short version = readVersion(buffer, path);
+        in.version = version;
+        buffer.getShort(); // flags, unused so far
+        buffer.getLong();  // saved-at
+        int roomCount = buffer.getInt();
+        int deviceCount = buffer.getInt();
+        int ruleCount = buffer.getInt();
+        if (version >= 2) {
+            buffer.getLong(); // journal sequence, see readJournalSequence
+        }
+
+        Home home = new Home(in.getString(), in.getString(), deviceCount);
+        // Name entries are the costliest part of indexing; build them on first use instead
+        home.deferNameIndex(deviceCount);
+        for (int r = 0; r < roomCount; r++) {
+            String roomId = in.getString();
+            String roomName = in.getString();
+            int devices = buffer.getInt();
+            Room room = new Room(roomId, roomName, devices);
+            // Fill the room before attaching it, so each device is indexed exactly once
+            for (int d = 0; d < devices; d++) {
+                room.restoreDevice(readDevice(in, room, path));
+            }
+            home.restoreRoom(room);
+        }
+        DeviceController controller = new DeviceController(home);
+        for (int i = 0; i < ruleCount; i++) {
+            controller.addRule(readRule(in, path));
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Corrupt home snapshot: " + path);
+        }
+        EventLog.info(null, home.getName(), "restored snapshot", deviceCount + " devices");
+        return controller;
+    }
+
+    // The journal position a snapshot covers; pass it to CommandJournal.open before replaying
+    public static long readJournalSequence(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+        }
+        header.flip();
+        try {
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a home snapshot: " + path);
+            }
+            short version = readVersion(header, path);
+            if (version < 2) {
+                return 0L;
+            }
+            header.position(HEADER_SIZE_V1);
+            return header.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated home snapshot: " + path);
+        }
+    }
+
+    private static short readVersion(ByteBuffer buffer, Path path) throws IOException {
+        short version = buffer.getShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + path);
+        }
+        return version;
+    }
+
+    // Also used by StatusExport for its binary format, which passes includeSecrets false
+    // so a lock is written without its code digest. Call while holding the device monitor.
+    static void writeDevice(Writer out, Room room, SmartDevice device, boolean includeSecrets) throws IOException {
+        boolean roomLocation = room.getId().equals(device.getLocation());
+        byte flags = (byte) ((device.isOn() ? FLAG_ON : 0)
+                | (device.isOnline() ? FLAG_ONLINE : 0)
+                | (roomLocation ? FLAG_ROOM_LOCATION : 0));
+        out.ensure(1);
+        out.buffer.put(typeOf(device));
+        out.putString(device.getId());
+        out.putString(device.getName());
+        out.ensure(1);
+        out.buffer.put(flags);
+        if (!roomLocation) {
+            out.putString(device.getLocation());
+        }
+        if (device instanceof Light) {
+            Light light = (Light) device;
+            out.putInt(light.getBrightness());
+            out.putString(light.getColor());
+        } else if (device instanceof Thermostat) {
+            Thermostat thermostat = (Thermostat) device;
+            out.ensure(16);
+            out.buffer.putDouble(thermostat.getTargetTemperature());
+            out.buffer.putDouble(thermostat.getCurrentTemperature());
+            out.putString(thermostat.getMode());
+        } else if (device instanceof SmartTV) {
+            SmartTV tv = (SmartTV) device;
+            out.putInt(tv.getVolume());
+            out.putInt(tv.getChannel());
+            out.putString(tv.getInput());
+        } else if (device instanceof SecurityCamera) {
+            SecurityCamera camera = (SecurityCamera) device;
+            out.ensure(2);
+            out.buffer.put((byte) (camera.isRecording() ? 1 : 0));
+            out.buffer.put((byte) (camera.hasNightVision() ? 1 : 0));
+            out.putString(camera.getResolution());
+        } else if (device instanceof SmartLock) {
+            SmartLock lock = (SmartLock) device;
+            out.ensure(1);
+            out.buffer.put((byte) (lock.isLocked() ? 1 : 0));
+            if (includeSecrets) {
+                out.ensure(SmartLock.SALT_BYTES + SmartLock.DIGEST_BYTES);
+                out.buffer.put(lock.getCodeSalt());
+                out.buffer.put(lock.getCodeDigest());
+            }
+        } else {
+            MotionSensor sensor = (MotionSensor) device;
+            out.ensure(13);
+            out.buffer.putInt(sensor.getSensitivityLevel());
+            out.buffer.put((byte) (sensor.isMotionDetected() ? 1 : 0));
+            out.buffer.putLong(sensor.getLastMotionTime());
+        }
+    }
+
+    private static SmartDevice readDevice(Reader in, Room room, Path path) throws IOException {
+        ByteBuffer buffer = in.buffer;
+        byte type = buffer.get();
+        String id = in.getString();
+        String name = in.getString();
+        byte flags = buffer.get();
+        String location = (flags & FLAG_ROOM_LOCATION) != 0 ? room.getId() : in.getString();
+        SmartDevice device;
+        switch (type) {
+            case LIGHT: {
+                Light light = new Light(id, name, location);
+                light.restore(buffer.getInt(), in.getString());
+                device = light;
+                break;
+            }
+            case THERMOSTAT: {
+                Thermostat thermostat = new Thermostat(id, name, location);
+                thermostat.restore(buffer.getDouble(), buffer.getDouble(), in.getString());
+                device = thermostat;
+                break;
+            }
+            case SMART_TV: {
+                SmartTV tv = new SmartTV(id, name, location);
+                tv.restore(buffer.getInt(), buffer.getInt(), in.getString());
+                device = tv;
+                break;
+            }
+            case SECURITY_CAMERA: {
+                SecurityCamera camera = new SecurityCamera(id, name, location);
+                boolean recording = buffer.get() != 0;
+                boolean nightVision = buffer.get() != 0;
+                camera.restore(recording, in.getString(), nightVision);
+                device = camera;
+                break;
+            }
+            case SMART_LOCK: {
+                SmartLock lock = new SmartLock(id, name, location);
+                boolean locked = buffer.get() != 0;
+                if (in.version >= 3) {
+                    byte[] salt = new byte[SmartLock.SALT_BYTES];
+                    byte[] digest = new byte[SmartLock.DIGEST_BYTES];
+                    buffer.get(salt);
+                    buffer.get(digest);
+                    lock.restore(locked, salt, digest);
+                } else {
+                    lock.restore(locked, in.getString());
+                }
+                device = lock;
+                break;
+            }
+            case MOTION_SENSOR: {
+                MotionSensor sensor = new MotionSensor(id, name, location);
+                sensor.restore(buffer.getInt(), buffer.get() != 0, buffer.getLong());
+                device = sensor;
+                break;
+            }
+            default:
+                throw new IOException("Unknown device type " + type + " in " + path);
+        }
+        device.restorePower((flags & FLAG_ON) != 0, (flags & FLAG_ONLINE) != 0);
+        return device;
+    }
+
+    private static void writeRule(Writer out, AutomationRule rule) throws IOException {
+        out.ensure(2);
+        out.buffer.put(rule.isTimeBased() ? TIME_RULE : rule.isConditionBased() ? COMPOUND_RULE : EVENT_RULE);
+        out.buffer.put((byte) (rule.isEnabled() ? 1 : 0));
+        out.putString(rule.getId());
+        out.putString(rule.getName());
+        if (rule.isTimeBased()) {
+            out.ensure(8);
+            out.buffer.putLong(rule.getScheduledTime().toNanoOfDay());
+            out.putString(rule.getDays());
+        } else if (rule.isConditionBased()) {
+            out.putString(rule.getCondition().toString());
+        } else {
+            out.putString(rule.getTriggerDeviceId());
+            out.putString(rule.getTriggerCondition());
+        }
+        out.putString(rule.getActionDeviceId());
+        out.putString(rule.getAction());
+    }
+
+    private static AutomationRule readRule(Reader in, Path path) throws IOException {
+        ByteBuffer buffer = in.buffer;
+        byte kind = buffer.get();
+        boolean enabled = buffer.get() != 0;
+        String id = in.getString();
+        String name = in.getString();
+        AutomationRule rule;
+        if (kind == TIME_RULE) {
+            LocalTime time = LocalTime.ofNanoOfDay(buffer.getLong());
+            String days = in.getString();
+            rule = new AutomationRule(id, name, in.getString(), in.getString(), time, days);
+        } else if (kind == EVENT_RULE) {
+            String trigger = in.getString();
+            String condition = in.getString();
+            rule = new AutomationRule(id, name, trigger, condition, in.getString(), in.getString());
+        } else if (kind == COMPOUND_RULE) {
+            String text = in.getString();
+            RuleCondition condition;
+            try {
+                condition = RuleCondition.parse(text);
+            } catch (InvalidOperationException e) {
+                throw new IOException("Unreadable rule condition '" + text + "' in " + path, e);
+            }
+            rule = new AutomationRule(id, name, condition, in.getString(), in.getString());
+        } else {
+            throw new IOException("Unknown rule kind " + kind + " in " + path);
+        }
+        rule.setEnabled(enabled);
+        return rule;
+    }
+
+    private static byte typeOf(SmartDevice device) throws IOException {
+        if (device instanceof Light) {
+            return LIGHT;
+        } else if (device instanceof Thermostat) {
+            return THERMOSTAT;
+        } else if (device instanceof SmartTV) {
+            return SMART_TV;
+        } else if (device instanceof SecurityCamera) {
+            return SECURITY_CAMERA;
+        } else if (device instanceof SmartLock) {
+            return SMART_LOCK;
+        } else if (device instanceof MotionSensor) {
+            return MOTION_SENSOR;
+        }
+        throw new IOException("Cannot snapshot device type " + device.getClass().getName());
+    }
+
+    // Buffered sequential writer over a channel
+    static final class Writer {
+        final WritableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Writer(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void skip(int bytes) throws IOException {
+            ensure(bytes);
+            buffer.position(buffer.position() + bytes);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putString(String value) throws IOException {
+            if (value == null) {
+                ensure(2);
+                buffer.putShort((short) NULL_STRING);
+                return;
+            }
+            int length = StatusFormat.utf8Length(value);
+            if (length >= NULL_STRING) {
+                throw new IOException("String too long for snapshot: " + length + " bytes");
+            }
+            ensure(2 + length);
+            buffer.putShort((short) length);
+            StatusFormat.putUtf8(buffer, value, 0);
+        }
+    }
+
+    private static final class Reader {
+        final ByteBuffer buffer;
+        short version;
+        private byte[] scratch = new byte[256];
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        String getString() {
+            int length = buffer.getShort() & 0xFFFF;
+            if (length == NULL_STRING) {
+                return null;
+            }
+            if (length > scratch.length) {
+                scratch = new byte[length];
+            }
+            buffer.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
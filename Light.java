@@ -1,60 +1,97 @@
 package smarthome;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
 
 public class Light extends SmartDevice implements Controllable, EnergyConsumer, Schedulable {
 
-    private int brightness = 100;
-    private String color = "#FFFFFF";
-    private final List<String> schedules = new ArrayList<String>();
+    private static final Set<DeviceOperation> OPERATIONS =
+            Collections.unmodifiableSet(EnumSet.of(DeviceOperation.BRIGHTNESS, DeviceOperation.COLOR));
+
+    private volatile int brightness = 100;
+    private volatile String color = "#FFFFFF";
 
     public Light(String id, String name, String roomId) {
         super(id, name, roomId);
     }
 
-    public void turnOn() {
+    public synchronized void turnOn() {
         if (!isOnline) {
-            System.out.println(name + " is offline and cannot be turned on.");
+            EventLog.warn(this, "is offline and cannot be turned on.");
         } else {
             isOn = true;
-            System.out.println(name + " turned ON at " + brightness + "% brightness");
+            energyChanged();
+            stateChanged(StateChange.Type.POWER, true);
+            EventLog.info(this, "{name} turned ON at {}% brightness", brightness);
         }
     }
 
-    public void turnOff() {
+    public synchronized void turnOff() {
         isOn = false;
-        System.out.println(name + " turned OFF");
+        energyChanged();
+        stateChanged(StateChange.Type.POWER, false);
+        EventLog.info(this, "turned OFF");
     }
 
     public String getStatus() {
-        return String.format(
-                "Light: %s | %s | Brightness: %d%% | Color: %s",
-                name,
-                isOn ? "ON" : "OFF",
-                brightness,
-                color
-        );
+        return appendStatus(new StringBuilder(96)).toString();
+    }
+
+    public synchronized StringBuilder appendStatus(StringBuilder sb) {
+        return sb.append("Light: ").append(name)
+                .append(" | ").append(isOn ? "ON" : "OFF")
+                .append(" | Brightness: ").append(brightness).append('%')
+                .append(" | Color: ").append(color);
     }
 
-    public void control(String command, Object value) {
+    public synchronized void control(String command, Object value) {
         if (command == null) {
             return;
         }
-        switch (command.toLowerCase()) {
-            case "brightness":
-                setBrightness((Integer) value);
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null || !supports(operation)) {
+            EventLog.warn(this, "Unknown command: {}", command);
+            return;
+        }
+        try {
+            apply(CommandHandle.bind(this, operation, value));
+        } catch (InvalidOperationException e) {
+            EventLog.warn(this, "rejected command", e.getMessage());
+        }
+    }
+
+    public String[] getAvailableCommands() {
+        return new String[]{"brightness", "color"};
+    }
+
+    public boolean supports(DeviceOperation operation) {
+        return OPERATIONS.contains(operation);
+    }
+
+    public synchronized void apply(CommandHandle command) {
+        switch (command.getOperation()) {
+            case BRIGHTNESS:
+                setBrightness(command.getIntValue());
                 break;
-            case "color":
-                setColor((String) value);
+            case COLOR:
+                setColor(command.getTextValue());
                 break;
             default:
-                System.out.println("Unknown command: " + command);
+                EventLog.warn(this, "Unknown command: {}", command.getOperation().getCommand());
         }
     }
 
-    public String[] getAvailableCommands() {
-        return new String[]{"brightness", "color"};
+    public boolean isInState(CommandHandle command) {
+        switch (command.getOperation()) {
+            case BRIGHTNESS:
+                return brightness == Math.max(0, Math.min(100, command.getIntValue()));
+            case COLOR:
+                return Objects.equals(color, command.getTextValue());
+            default:
+                return false;
+        }
     }
 
     public double getEnergyConsumption() {
@@ -62,31 +99,41 @@ public class Light extends SmartDevice implements Controllable, EnergyConsumer,
     }
 
     public double getDailyUsage() {
-        return getEnergyConsumption() * 8.0 / 1000.0;
+        double measured = measuredDailyUsage();
+        // Outside a home there is no history yet, so fall back to a typical duty cycle
+        return measured >= 0.0 ? measured : getEnergyConsumption() * 8.0 / 1000.0;
     }
 
-    public void scheduleAction(String action, String time) {
-        String entry = action + " at " + time;
-        schedules.add(entry);
-        System.out.println("Scheduled: " + name + " will " + entry);
+    public String scheduleAction(String action, String time) throws InvalidOperationException {
+        ScheduleIndex.Entry entry = ScheduleIndex.shared().add(this, action, time);
+        EventLog.info(this, "Scheduled: {name} will {}", entry.describe());
+        return entry.getId();
     }
 
-    public void cancelSchedule(String schedule) {
-        schedules.remove(schedule);
+    public boolean cancelSchedule(String schedule) {
+        return ScheduleIndex.shared().cancel(this, schedule);
     }
 
     public String[] getScheduledActions() {
-        return schedules.toArray(new String[0]);
+        return ScheduleIndex.shared().describe(this);
     }
 
-    public void setBrightness(int value) {
+    public synchronized void setBrightness(int value) {
         brightness = Math.max(0, Math.min(100, value));
-        System.out.println(name + " brightness set to " + brightness + "%");
+        energyChanged();
+        stateChanged(StateChange.Type.BRIGHTNESS, brightness);
+        EventLog.info(this, "{name} brightness set to {}%", brightness);
+    }
+
+    public synchronized void setColor(String color) {
+        this.color = color;
+        stateChanged(StateChange.Type.COLOR, color);
+        EventLog.info(this, "color set to", color);
     }
 
-    public void setColor(String color) {
+    synchronized void restore(int brightness, String color) {
+        this.brightness = brightness;
         this.color = color;
-        System.out.println(name + " color set to " + color);
     }
 
     public int getBrightness() {
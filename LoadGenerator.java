@@ -0,0 +1,343 @@
+package smarthome;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless synthetic load: builds a home of the requested size, then drives a mix
+// of device commands and motion detections at a fixed target rate and reports
+// throughput and latency percentiles.
+//
+// The load is open-loop: every operation has an intended start time on a fixed
+// schedule, and its latency is measured from that time, not from when the worker
+// got round to it. A stall therefore shows up in the percentiles of every
+// operation that queued behind it instead of silently lowering the offered rate.
+// A reported motion detection counts as done once the bus has delivered it and the
+// controller has run every rule it triggered; detections the sensor coalesced
+// produce no event, so they are timed only up to the end of detectMotion().
+public class LoadGenerator {
+
+    public static final class Settings {
+        private int rooms = 20;
+        private int devices = 1_000;
+        private int rules = 200;
+        private double rate = 10_000.0;      // operations per second, all threads together
+        private int durationSeconds = 10;
+        private double motionShare = 0.2;    // fraction of operations that are motion detections
+        private int threads = 4;
+        private long seed = 42L;
+
+        public Settings rooms(int rooms) {
+            this.rooms = Math.max(1, rooms);
+            return this;
+        }
+
+        public Settings devices(int devices) {
+            this.devices = Math.max(1, devices);
+            return this;
+        }
+
+        public Settings rules(int rules) {
+            this.rules = Math.max(0, rules);
+            return this;
+        }
+
+        public Settings rate(double rate) {
+            this.rate = Math.max(1.0, rate);
+            return this;
+        }
+
+        public Settings durationSeconds(int seconds) {
+            this.durationSeconds = Math.max(1, seconds);
+            return this;
+        }
+
+        public Settings motionShare(double share) {
+            this.motionShare = Math.max(0.0, Math.min(1.0, share));
+            return this;
+        }
+
+        public Settings threads(int threads) {
+            this.threads = Math.max(1, threads);
+            return this;
+        }
+
+        public Settings seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        // key=value pairs, e.g. "devices=5000 rate=20000 duration=30"
+        public static Settings parse(String[] args) {
+            Settings settings = new Settings();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("Expected key=value, got: " + arg);
+                }
+                String key = arg.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                String value = arg.substring(eq + 1).trim();
+                switch (key) {
+                    case "rooms":
+                        settings.rooms(Integer.parseInt(value));
+                        break;
+                    case "devices":
+                        settings.devices(Integer.parseInt(value));
+                        break;
+                    case "rules":
+                        settings.rules(Integer.parseInt(value));
+                        break;
+                    case "rate":
+                        settings.rate(Double.parseDouble(value));
+                        break;
+                    case "duration":
+                        settings.durationSeconds(Integer.parseInt(value));
+                        break;
+                    case "motion":
+                        settings.motionShare(Double.parseDouble(value));
+                        break;
+                    case "threads":
+                        settings.threads(Integer.parseInt(value));
+                        break;
+                    case "seed":
+                        settings.seed(Long.parseLong(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown setting: " + key);
+                }
+            }
+            return settings;
+        }
+    }
+
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final int COMMANDS_PER_DEVICE = 4;
+
+    private final Settings settings;
+    private final DeviceController controller;
+    private final CommandHandle[] commands;
+    private final MotionSensor[] sensors;
+    // Intended start times of reported detections whose rules have not run yet, per sensor
+    private final Map<String, ConcurrentLinkedQueue<Long>> pendingMotion =
+            new HashMap<String, ConcurrentLinkedQueue<Long>>();
+    private final LatencyHistogram commandLatency = new LatencyHistogram();
+    private final LatencyHistogram motionLatency = new LatencyHistogram();
+    private final LatencyHistogram coalescedLatency = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    public LoadGenerator(Settings settings) {
+        this.settings = settings;
+        Random random = new Random(settings.seed);
+        Home home = new Home("Load", "Synthetic Street", settings.devices);
+        Room[] rooms = new Room[settings.rooms];
+        for (int r = 0; r < rooms.length; r++) {
+            rooms[r] = new Room("room" + r, "Room " + r);
+            home.addRoom(rooms[r]);
+        }
+        List<SmartDevice> targets = new ArrayList<SmartDevice>();
+        List<MotionSensor> sensorList = new ArrayList<MotionSensor>();
+        for (int i = 0; i < settings.devices; i++) {
+            Room room = rooms[i % rooms.length];
+            SmartDevice device = createDevice(i, room.getId());
+            device.turnOn();
+            room.addDevice(device);
+            if (device instanceof MotionSensor) {
+                sensorList.add((MotionSensor) device);
+            } else {
+                targets.add(device);
+            }
+        }
+        this.controller = new DeviceController(home);
+        this.sensors = sensorList.toArray(new MotionSensor[0]);
+        // Motion rules switch a random device on or off
+        for (int i = 0; i < settings.rules && sensors.length > 0 && !targets.isEmpty(); i++) {
+            MotionSensor trigger = sensors[random.nextInt(sensors.length)];
+            SmartDevice target = targets.get(random.nextInt(targets.size()));
+            controller.addRule(new AutomationRule("rule" + i, "Load rule " + i, trigger.getId(),
+                    "motion_detected", target.getId(), random.nextBoolean() ? "turn_on" : "turn_off"));
+        }
+        // Subscribed after the controller, so on the bus's dispatcher this runs right
+        // after the controller has fired the detection's rules
+        for (MotionSensor sensor : sensors) {
+            pendingMotion.put(sensor.getId(), new ConcurrentLinkedQueue<Long>());
+        }
+        home.getStateChangeBus().subscribe(null, null, EnumSet.of(StateChange.Type.MOTION),
+                new StateChangeBus.Listener() {
+                    public void onStateChange(StateChange change) {
+                        if (!change.getBooleanValue()) {
+                            return;
+                        }
+                        Long intended = pendingMotion.get(change.getDeviceId()).poll();
+                        if (intended != null) {
+                            motionLatency.record(System.nanoTime() - intended);
+                        }
+                    }
+                });
+        // Commands are resolved up front so the run measures execution, not parsing
+        List<CommandHandle> handles = new ArrayList<CommandHandle>();
+        for (SmartDevice device : targets) {
+            for (int k = 0; k < COMMANDS_PER_DEVICE; k++) {
+                try {
+                    handles.add(randomCommand(device, random));
+                } catch (InvalidOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        this.commands = handles.toArray(new CommandHandle[0]);
+    }
+
+    public DeviceController getController() {
+        return controller;
+    }
+
+    public void run(PrintStream out) throws InterruptedException {
+        out.printf("Load: %d devices (%d motion sensors) in %d rooms, %d rules%n",
+                settings.devices, sensors.length, settings.rooms, controller.getRules().size());
+        out.printf("Target %.0f ops/s for %d s on %d threads, %.0f%% motion%n",
+                settings.rate, settings.durationSeconds, settings.threads, settings.motionShare * 100.0);
+
+        // Warm up at the target rate, then measure from a clean slate
+        drive(WARMUP_NANOS);
+        controller.getHome().getStateChangeBus().flush();
+        commandLatency.reset();
+        motionLatency.reset();
+        coalescedLatency.reset();
+        failures.set(0L);
+        long published = controller.getHome().getStateChangeBus().getPublishedCount();
+
+        long start = System.nanoTime();
+        drive(settings.durationSeconds * 1_000_000_000L);
+        controller.getHome().getStateChangeBus().flush();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long commandCount = commandLatency.getCount();
+        long motionCount = motionLatency.getCount();
+        long coalescedCount = coalescedLatency.getCount();
+        out.printf("Achieved %.0f ops/s: %d commands (%d failed), %d motion detections (%d reported, %d coalesced)%n",
+                (commandCount + motionCount + coalescedCount) / seconds, commandCount, failures.get(),
+                motionCount + coalescedCount, motionCount, coalescedCount);
+        out.printf("%d state changes published%n",
+                controller.getHome().getStateChangeBus().getPublishedCount() - published);
+        printLatency(out, "command", commandLatency);
+        printLatency(out, "motion", motionLatency);
+        printLatency(out, "coalesced", coalescedLatency);
+    }
+
+    private void drive(long durationNanos) throws InterruptedException {
+        final int threads = settings.threads;
+        final long interval = (long) (1e9 * threads / settings.rate); // per thread
+        final long begin = System.nanoTime();
+        final long end = begin + durationNanos;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(settings.seed * 31 + t);
+            // Stagger the threads so their schedules interleave evenly
+            final long first = begin + interval * t / threads;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (long intended = first; intended < end; intended += interval) {
+                        long now = System.nanoTime();
+                        if (now < intended) {
+                            LockSupport.parkNanos(intended - now);
+                        }
+                        operate(random, intended);
+                    }
+                }
+            }, "load-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void operate(Random random, long intended) {
+        if (sensors.length > 0 && (commands.length == 0 || random.nextDouble() < settings.motionShare)) {
+            MotionSensor sensor = sensors[random.nextInt(sensors.length)];
+            ConcurrentLinkedQueue<Long> pending = pendingMotion.get(sensor.getId());
+            Long start = intended;
+            boolean coalesced;
+            // Queued under the sensor's monitor, so the start times line up with the order
+            // the sensor publishes in, and before the call, since the bus may deliver the
+            // detection before detectMotion() returns
+            synchronized (sensor) {
+                long reported = sensor.getDetectionCount() - sensor.getCoalescedCount();
+                pending.offer(start);
+                sensor.detectMotion();
+                coalesced = sensor.getDetectionCount() - sensor.getCoalescedCount() == reported;
+                if (coalesced) {
+                    pending.remove(start);
+                }
+            }
+            if (coalesced) {
+                coalescedLatency.record(System.nanoTime() - intended);
+            }
+            return;
+        }
+        try {
+            controller.execute(commands[random.nextInt(commands.length)]);
+        } catch (DeviceOfflineException e) {
+            failures.incrementAndGet();
+        }
+        commandLatency.record(System.nanoTime() - intended);
+    }
+
+    private static void printLatency(PrintStream out, String label, LatencyHistogram histogram) {
+        out.printf("  %-9s p50=%s p99=%s p999=%s max=%s%n", label,
+                micros(histogram.getValueAtPercentile(50.0)),
+                micros(histogram.getValueAtPercentile(99.0)),
+                micros(histogram.getValueAtPercentile(99.9)),
+                micros(histogram.getMax()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+    }
+
+    private static SmartDevice createDevice(int i, String roomId) {
+        String id = "d" + i;
+        switch (i % 6) {
+            case 0:
+                return new Light(id, "Light " + i, roomId);
+            case 1:
+                return new Thermostat(id, "Thermostat " + i, roomId);
+            case 2:
+                return new SmartTV(id, "TV " + i, roomId);
+            case 3:
+                return new SecurityCamera(id, "Camera " + i, roomId);
+            case 4:
+                return new MotionSensor(id, "Sensor " + i, roomId);
+            default:
+                return new SmartLock(id, "Lock " + i, roomId);
+        }
+    }
+
+    private static CommandHandle randomCommand(SmartDevice device, Random random) throws InvalidOperationException {
+        if (random.nextInt(4) == 0) {
+            return CommandHandle.resolve(device, random.nextBoolean() ? "turn_on" : "turn_off", null);
+        }
+        if (device instanceof Light) {
+            return CommandHandle.resolve(device, "brightness", random.nextInt(101));
+        } else if (device instanceof Thermostat) {
+            return CommandHandle.resolve(device, "temperature", 15.0 + random.nextInt(31) / 2.0);
+        } else if (device instanceof SmartTV) {
+            return CommandHandle.resolve(device, "volume", random.nextInt(101));
+        } else if (device instanceof SecurityCamera) {
+            return CommandHandle.resolve(device, "record", random.nextBoolean());
+        } else if (device instanceof SmartLock) {
+            return random.nextBoolean()
+                    ? CommandHandle.resolve(device, "lock", null)
+                    : CommandHandle.resolve(device, "unlock", "1234");
+        }
+        return CommandHandle.resolve(device, "turn_on", null);
+    }
+}
@@ -0,0 +1,207 @@
+package smarthome;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Named counters and latency histograms. Looking a metric up by name is a map
+// access, so hot paths resolve their metrics once and keep the references;
+// recording is then lock-free (a LongAdder, or a LatencyHistogram bucket).
+//
+// Counters see every call. Latency is only timed for a random 1-in-N sample of
+// calls, since two clock reads and a histogram update cost more than the fastest
+// commands themselves; percentiles of a uniform sample are unbiased.
+public class MetricsRegistry {
+
+    public static final int DEFAULT_LATENCY_SAMPLING = 16;
+
+    // Start time handed out for a call that was not picked for timing
+    static final long UNTIMED = Long.MIN_VALUE;
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        void reset() {
+            value.reset();
+        }
+    }
+
+    // Point-in-time summary of one histogram; durations in nanoseconds
+    public static final class HistogramSummary {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        HistogramSummary(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getValueAtPercentile(50.0);
+            this.p99 = histogram.getValueAtPercentile(99.0);
+            this.p999 = histogram.getValueAtPercentile(99.9);
+            this.max = histogram.getMax();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+    public static final class Snapshot {
+        private final SortedMap<String, Long> counters;
+        private final SortedMap<String, HistogramSummary> histograms;
+
+        Snapshot(SortedMap<String, Long> counters, SortedMap<String, HistogramSummary> histograms) {
+            this.counters = Collections.unmodifiableSortedMap(counters);
+            this.histograms = Collections.unmodifiableSortedMap(histograms);
+        }
+
+        public SortedMap<String, Long> getCounters() {
+            return counters;
+        }
+
+        public SortedMap<String, HistogramSummary> getHistograms() {
+            return histograms;
+        }
+
+        public void print(PrintStream out) {
+            out.println("--- Counters ---");
+            if (counters.isEmpty()) {
+                out.println("  (none)");
+            }
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                out.printf("  %-48s %d%n", entry.getKey(), entry.getValue());
+            }
+            out.println("--- Latency (us) ---");
+            if (histograms.isEmpty()) {
+                out.println("  (none)");
+            }
+            for (Map.Entry<String, HistogramSummary> entry : histograms.entrySet()) {
+                HistogramSummary h = entry.getValue();
+                out.printf(Locale.ROOT, "  %-48s n=%d mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                        entry.getKey(), h.count, h.mean / 1000.0, h.p50 / 1000.0, h.p99 / 1000.0,
+                        h.p999 / 1000.0, h.max / 1000.0);
+            }
+        }
+    }
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private volatile int latencySampling = DEFAULT_LATENCY_SAMPLING;
+
+    // Times one call in everyN: 1 times every call, 0 stops timing altogether
+    public void setLatencySampling(int everyN) {
+        latencySampling = Math.max(0, everyN);
+    }
+
+    public int getLatencySampling() {
+        return latencySampling;
+    }
+
+    // The clock reading to time a call from, or UNTIMED when the call is not sampled.
+    // Picked at random rather than every Nth call so periodic load cannot alias with it.
+    long startTiming() {
+        int every = latencySampling;
+        if (every == 1 || (every > 1 && ThreadLocalRandom.current().nextInt(every) == 0)) {
+            return System.nanoTime();
+        }
+        return UNTIMED;
+    }
+
+    static long elapsedSince(long start) {
+        return start == UNTIMED ? UNTIMED : System.nanoTime() - start;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    // Metrics that were never recorded to are left out
+    public Snapshot snapshot() {
+        SortedMap<String, Long> counterValues = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            long value = entry.getValue().get();
+            if (value != 0L) {
+                counterValues.put(entry.getKey(), value);
+            }
+        }
+        SortedMap<String, HistogramSummary> summaries = new TreeMap<String, HistogramSummary>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            HistogramSummary summary = new HistogramSummary(entry.getValue());
+            if (summary.count != 0L) {
+                summaries.put(entry.getKey(), summary);
+            }
+        }
+        return new Snapshot(counterValues, summaries);
+    }
+
+    // Zeroes every metric; references held by instrumented code stay valid
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
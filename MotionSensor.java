@@ -1,38 +1,81 @@
 package smarthome;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Detections are debounced: while motion is already reported, further detections
+// within the debounce window only extend the motion episode and are not published
+// again, so a flapping sensor fires its rules at most once per window. Motion
+// clears by itself once the sensor has been quiet for a few windows. Both windows
+// shrink as sensitivity goes up.
 public class MotionSensor extends SmartDevice implements EnergyConsumer {
 
-    private boolean motionDetected = false;
-    private long lastMotionTime = 0L;
-    private int sensitivityLevel = 5; // 1–10
+    static final long DEBOUNCE_STEP_MILLIS = 250L; // per sensitivity level below 11
+    static final int QUIET_WINDOWS = 4;            // debounce windows without motion before it clears
+
+    // One shared timer for every sensor; a sensor has at most one pending clear check
+    private static final ScheduledExecutorService CLEAR_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "motion-clear");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private volatile boolean motionDetected = false;
+    private volatile long lastMotionTime = 0L;
+    private volatile int sensitivityLevel = 5; // 1–10
+
+    // Guarded by this sensor's monitor
+    private long lastReportedTime;
+    private boolean clearPending;
+    private volatile long detections;
+    private volatile long coalesced;
+    private final Runnable clearTask = new Runnable() {
+        public void run() {
+            clearIfQuiet();
+        }
+    };
 
     public MotionSensor(String id, String name, String roomId) {
         super(id, name, roomId);
     }
 
-    public void turnOn() {
+    public synchronized void turnOn() {
         if (!isOnline) {
-            System.out.println(name + " is offline.");
+            EventLog.warn(this, "is offline.");
         } else {
             isOn = true;
-            System.out.println(name + " sensor activated. Sensitivity: " + sensitivityLevel);
+            energyChanged();
+            stateChanged(StateChange.Type.POWER, true);
+            EventLog.info(this, "{name} sensor activated. Sensitivity: {}", sensitivityLevel);
         }
     }
 
-    public void turnOff() {
+    public synchronized void turnOff() {
+        boolean hadMotion = motionDetected;
         isOn = false;
+        energyChanged();
         motionDetected = false;
-        System.out.println(name + " sensor deactivated");
+        stateChanged(StateChange.Type.POWER, false);
+        if (hadMotion) {
+            stateChanged(StateChange.Type.MOTION, false);
+        }
+        EventLog.info(this, "sensor deactivated");
     }
 
     public String getStatus() {
-        return String.format(
-                "MotionSensor: %s | %s | Motion: %s | Sensitivity: %d",
-                name,
-                isOn ? "ACTIVE" : "INACTIVE",
-                motionDetected ? "DETECTED" : "NONE",
-                sensitivityLevel
-        );
+        return appendStatus(new StringBuilder(96)).toString();
+    }
+
+    public synchronized StringBuilder appendStatus(StringBuilder sb) {
+        return sb.append("MotionSensor: ").append(name)
+                .append(" | ").append(isOn ? "ACTIVE" : "INACTIVE")
+                .append(" | Motion: ").append(motionDetected ? "DETECTED" : "NONE")
+                .append(" | Sensitivity: ").append(sensitivityLevel);
     }
 
     public double getEnergyConsumption() {
@@ -40,23 +83,83 @@ public class MotionSensor extends SmartDevice implements EnergyConsumer {
     }
 
     public double getDailyUsage() {
-        return getEnergyConsumption() * 24.0 / 1000.0;
+        double measured = measuredDailyUsage();
+        // Outside a home there is no history yet, so fall back to a typical duty cycle
+        return measured >= 0.0 ? measured : getEnergyConsumption() * 24.0 / 1000.0;
     }
 
-    public void detectMotion() {
-        if (isOn) {
-            motionDetected = true;
-            lastMotionTime = System.currentTimeMillis();
-            System.out.println("ALERT: Motion detected by " + name + "!");
+    public synchronized void detectMotion() {
+        if (!isOn) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        detections++;
+        lastMotionTime = now;
+        if (motionDetected && now - lastReportedTime < getDebounceMillis()) {
+            coalesced++;
+            return;
         }
+        motionDetected = true;
+        lastReportedTime = now;
+        stateChanged(StateChange.Type.MOTION, true);
+        EventLog.warn(this, "ALERT: Motion detected by {name}!");
+        scheduleClear(getClearAfterMillis());
     }
 
-    public void clearMotion() {
+    public synchronized void clearMotion() {
+        if (motionDetected) {
+            motionDetected = false;
+            stateChanged(StateChange.Type.MOTION, false);
+        }
+    }
+
+    // Runs on the clear timer. The deadline moves with every detection, so instead of
+    // rescheduling per detection the check re-arms itself for whatever time is left.
+    private synchronized void clearIfQuiet() {
+        clearPending = false;
+        if (!motionDetected) {
+            return;
+        }
+        long remaining = lastMotionTime + getClearAfterMillis() - System.currentTimeMillis();
+        if (remaining > 0L) {
+            scheduleClear(remaining);
+            return;
+        }
         motionDetected = false;
+        stateChanged(StateChange.Type.MOTION, false);
+        EventLog.info(this, "motion cleared");
     }
 
-    public void setSensitivity(int level) {
+    private void scheduleClear(long delayMillis) {
+        if (!clearPending) {
+            clearPending = true;
+            CLEAR_TIMER.schedule(clearTask, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Detections closer together than this are coalesced: 250 ms at sensitivity 10
+    // up to 2.5 s at sensitivity 1
+    public long getDebounceMillis() {
+        return DEBOUNCE_STEP_MILLIS * (11 - sensitivityLevel);
+    }
+
+    public long getClearAfterMillis() {
+        return getDebounceMillis() * QUIET_WINDOWS;
+    }
+
+    public synchronized void setSensitivity(int level) {
         sensitivityLevel = Math.max(1, Math.min(10, level));
+        stateChanged(StateChange.Type.SENSITIVITY, sensitivityLevel);
+    }
+
+    synchronized void restore(int sensitivityLevel, boolean motionDetected, long lastMotionTime) {
+        this.sensitivityLevel = sensitivityLevel;
+        this.motionDetected = motionDetected;
+        this.lastMotionTime = lastMotionTime;
+        this.lastReportedTime = lastMotionTime;
+        if (motionDetected) {
+            scheduleClear(0L); // re-arms itself if the episode is still recent
+        }
     }
 
     public boolean isMotionDetected() {
@@ -70,4 +173,13 @@ public class MotionSensor extends SmartDevice implements EnergyConsumer {
     public int getSensitivityLevel() {
         return sensitivityLevel;
     }
+
+    // Detections while the sensor was on, including the coalesced ones
+    public long getDetectionCount() {
+        return detections;
+    }
+
+    public long getCoalescedCount() {
+        return coalesced;
+    }
 }
@@ -0,0 +1,59 @@
+package smarthome;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Calls, latency and failures of one kind of call, broken down by device type and
+// operation, e.g. "command.light.brightness". Each cell is registered on first
+// use, so only the combinations that actually occur cost a histogram. Every call
+// is counted; only sampled calls carry a duration.
+final class OperationMetrics {
+
+    private static final int OPERATIONS = DeviceOperation.values().length;
+
+    private final MetricsRegistry registry;
+    private final String prefix;
+    private final AtomicReferenceArray<MetricsRegistry.Counter> calls;
+    private final AtomicReferenceArray<LatencyHistogram> latency;
+    private final AtomicReferenceArray<MetricsRegistry.Counter> failures;
+
+    OperationMetrics(MetricsRegistry registry, String prefix) {
+        this.registry = registry;
+        this.prefix = prefix;
+        int cells = DeviceType.values().length * OPERATIONS;
+        this.calls = new AtomicReferenceArray<MetricsRegistry.Counter>(cells);
+        this.latency = new AtomicReferenceArray<LatencyHistogram>(cells);
+        this.failures = new AtomicReferenceArray<MetricsRegistry.Counter>(cells);
+    }
+
+    // nanos is MetricsRegistry.UNTIMED for a call that was not sampled
+    void record(SmartDevice device, DeviceOperation operation, long nanos, boolean failed) {
+        DeviceType type = DeviceType.of(device);
+        int cell = type.ordinal() * OPERATIONS + operation.ordinal();
+        MetricsRegistry.Counter count = calls.get(cell);
+        if (count == null) {
+            count = registry.counter(name(type, operation));
+            calls.set(cell, count); // racing threads get the same instance from the registry
+        }
+        count.increment();
+        if (nanos != MetricsRegistry.UNTIMED) {
+            LatencyHistogram histogram = latency.get(cell);
+            if (histogram == null) {
+                histogram = registry.histogram(name(type, operation));
+                latency.set(cell, histogram);
+            }
+            histogram.record(nanos);
+        }
+        if (failed) {
+            MetricsRegistry.Counter counter = failures.get(cell);
+            if (counter == null) {
+                counter = registry.counter(name(type, operation) + ".failed");
+                failures.set(cell, counter);
+            }
+            counter.increment();
+        }
+    }
+
+    private String name(DeviceType type, DeviceOperation operation) {
+        return prefix + "." + type.getLabel() + "." + operation.getCommand();
+    }
+}
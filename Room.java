@@ -1,31 +1,60 @@
 package smarthome;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Room {
 
     private final String id;
     private String name;
     private final Map<String, SmartDevice> devices;
+    private volatile Home home;
+    private final LongAdder energyMilliwatts = new LongAdder();
 
     public Room(String id, String name) {
+        this(id, name, 16);
+    }
+
+    Room(String id, String name, int expectedDevices) {
         this.id = id;
         this.name = name;
-        this.devices = new HashMap<String, SmartDevice>();
+        this.devices = new ConcurrentHashMap<String, SmartDevice>(expectedDevices);
+    }
+
+    public synchronized void addDevice(SmartDevice device) {
+        restoreDevice(device);
+        EventLog.info(device, "Added {name} to {}", name);
     }
 
-    public void addDevice(SmartDevice device) {
-        devices.put(device.getId(), device);
-        System.out.println("Added " + device.getName() + " to " + name);
+    // Same as addDevice without the log line, for HomeSnapshot
+    synchronized void restoreDevice(SmartDevice device) {
+        SmartDevice previous = devices.put(device.getId(), device);
+        if (previous != null && previous != device) {
+            previous.attachTo((Room) null);
+            ScheduleIndex.shared().cancelAll(previous);
+        }
+        device.attachTo(this);
+        if (home != null) {
+            if (previous != null) {
+                home.unindexDevice(previous);
+            }
+            home.indexDevice(device);
+        }
     }
 
-    public void removeDevice(String deviceId) {
+    public synchronized void removeDevice(String deviceId) {
         SmartDevice removed = devices.remove(deviceId);
         if (removed != null) {
-            System.out.println("Removed " + removed.getName() + " from " + name);
+            removed.attachTo((Room) null);
+            // The shared index would otherwise keep the device alive and running its schedules
+            ScheduleIndex.shared().cancelAll(removed);
+            if (home != null) {
+                home.unindexDevice(removed);
+            }
+            EventLog.info(removed, "Removed {name} from {}", name);
         }
     }
 
@@ -37,27 +66,54 @@ public class Room {
         return new ArrayList<SmartDevice>(devices.values());
     }
 
-    public void turnAllOn() {
-        System.out.println("\n--- Turning on all devices in " + name + " ---");
-        for (SmartDevice device : devices.values()) {
-            device.turnOn();
-        }
+    public BulkResult turnAllOn() {
+        EventLog.info(id, name, "\n--- Turning on all devices in {name} ---", null);
+        return BulkCommand.run(devices.values(), DeviceOperation.TURN_ON, null);
     }
 
-    public void turnAllOff() {
-        System.out.println("\n--- Turning off all devices in " + name + " ---");
-        for (SmartDevice device : devices.values()) {
-            device.turnOff();
-        }
+    public BulkResult turnAllOff() {
+        EventLog.info(id, name, "\n--- Turning off all devices in {name} ---", null);
+        return BulkCommand.run(devices.values(), DeviceOperation.TURN_OFF, null);
     }
 
     public void showStatus() {
+        EventLog.flush();
         System.out.println("\n=== " + name + " Status ===");
+        StringBuilder line = new StringBuilder(128);
         for (SmartDevice device : devices.values()) {
-            System.out.println("  " + device.getStatus());
+            line.setLength(0);
+            System.out.println(device.appendStatus(line.append("  ")));
         }
     }
 
+    Home getHome() {
+        return home;
+    }
+
+    void setHome(Home home) {
+        this.home = home;
+    }
+
+    // Current draw of the devices in this room, maintained incrementally
+    public double getEnergyConsumption() {
+        return energyMilliwatts.sum() / 1000.0;
+    }
+
+    // Full scan of the room's devices, used to cross-check the running total
+    public double recomputeEnergyConsumption() {
+        double total = 0.0;
+        for (SmartDevice device : getAllDevices()) {
+            if (device instanceof EnergyConsumer) {
+                total += ((EnergyConsumer) device).getEnergyConsumption();
+            }
+        }
+        return total;
+    }
+
+    void addEnergy(long deltaMilliwatts) {
+        energyMilliwatts.add(deltaMilliwatts);
+    }
+
     public String getId() {
         return id;
     }
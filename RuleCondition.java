@@ -0,0 +1,290 @@
+package smarthome;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Compound trigger of an automation rule: terms joined by AND, each either a test on
+// one device attribute or a time-of-day window, e.g.
+//
+//   thermostat1.current_temperature > 26 and lock1.locked == false and time between 22:00 and 06:00
+//
+// Attributes are StateChange types in lower case. Text attributes (color, mode, input,
+// resolution) compare with == and != only; the others take a number, or true/false
+// (on/off) for booleans. A window whose start is after its end wraps past midnight;
+// the start is inclusive and the end exclusive.
+public final class RuleCondition {
+
+    public enum Operator {
+        GT(">"), GE(">="), LT("<"), LE("<="), EQ("=="), NE("!=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        boolean test(double left, double right) {
+            switch (this) {
+                case GT:
+                    return left > right;
+                case GE:
+                    return left >= right;
+                case LT:
+                    return left < right;
+                case LE:
+                    return left <= right;
+                case EQ:
+                    return left == right;
+                default:
+                    return left != right;
+            }
+        }
+
+        static Operator fromSymbol(String symbol) {
+            for (Operator op : values()) {
+                if (op.symbol.equals(symbol)) {
+                    return op;
+                }
+            }
+            return "=".equals(symbol) ? EQ : null;
+        }
+    }
+
+    public static final class Term implements Comparable<Term> {
+        private final String deviceId;            // null for a time window
+        private final StateChange.Type attribute;
+        private final Operator operator;
+        private final double number;
+        private final String text;                // text attributes only
+        private final LocalTime windowStart;
+        private final LocalTime windowEnd;
+        private final String key;
+
+        private Term(String deviceId, StateChange.Type attribute, Operator operator, double number, String text,
+                     LocalTime windowStart, LocalTime windowEnd) {
+            this.deviceId = deviceId;
+            this.attribute = attribute;
+            this.operator = operator;
+            this.number = number;
+            this.text = text;
+            this.windowStart = windowStart;
+            this.windowEnd = windowEnd;
+            this.key = render();
+        }
+
+        public boolean isTimeWindow() {
+            return deviceId == null;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public StateChange.Type getAttribute() {
+            return attribute;
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+
+        public LocalTime getWindowStart() {
+            return windowStart;
+        }
+
+        public LocalTime getWindowEnd() {
+            return windowEnd;
+        }
+
+        boolean test(double value) {
+            return !Double.isNaN(value) && operator.test(value, number);
+        }
+
+        boolean test(String value) {
+            boolean equal = value != null && value.equalsIgnoreCase(text);
+            return operator == Operator.EQ ? equal : !equal;
+        }
+
+        boolean test(LocalTime time) {
+            if (windowStart.isAfter(windowEnd)) {
+                return !time.isBefore(windowStart) || time.isBefore(windowEnd);
+            }
+            return !time.isBefore(windowStart) && time.isBefore(windowEnd);
+        }
+
+        // Canonical text; equal terms share one node in the rule network
+        String key() {
+            return key;
+        }
+
+        public int compareTo(Term other) {
+            return key.compareTo(other.key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Term && key.equals(((Term) o).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+
+        private String render() {
+            if (deviceId == null) {
+                return "time between " + windowStart + " and " + windowEnd;
+            }
+            String value;
+            if (text != null) {
+                value = text;
+            } else if (isFlag(attribute) && (number == 0.0 || number == 1.0)) {
+                value = number == 1.0 ? "true" : "false";
+            } else if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+                value = Long.toString((long) number);
+            } else {
+                value = Double.toString(number);
+            }
+            return deviceId + "." + attribute.name().toLowerCase(Locale.ROOT) + " " + operator.symbol + " " + value;
+        }
+    }
+
+    private final List<Term> terms;
+
+    private RuleCondition(List<Term> terms) {
+        this.terms = Collections.unmodifiableList(terms);
+    }
+
+    // Terms are kept in canonical order, so "a and b" and "b and a" compile to the same nodes
+    public static RuleCondition parse(String text) throws InvalidOperationException {
+        if (text == null || text.trim().isEmpty()) {
+            throw new InvalidOperationException("condition", "Empty condition");
+        }
+        List<Term> terms = new ArrayList<Term>();
+        for (String part : text.trim().split("(?i)\\s+and\\s+(?![0-9]{1,2}:[0-9]{2})")) {
+            Term term = parseTerm(part.trim());
+            if (!terms.contains(term)) {
+                terms.add(term);
+            }
+        }
+        Collections.sort(terms);
+        return new RuleCondition(terms);
+    }
+
+    public List<Term> getTerms() {
+        return terms;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Term term : terms) {
+            if (sb.length() > 0) {
+                sb.append(" and ");
+            }
+            sb.append(term.key());
+        }
+        return sb.toString();
+    }
+
+    private static Term parseTerm(String text) throws InvalidOperationException {
+        String[] words = text.split("\\s+");
+        if (words.length == 5 && words[0].equalsIgnoreCase("time") && words[1].equalsIgnoreCase("between")
+                && words[3].equalsIgnoreCase("and")) {
+            try {
+                LocalTime start = LocalTime.parse(words[2]);
+                LocalTime end = LocalTime.parse(words[4]);
+                if (start.equals(end)) {
+                    throw new InvalidOperationException("condition", "Empty time window in '" + text + "'");
+                }
+                return new Term(null, null, null, 0.0, null, start, end);
+            } catch (DateTimeParseException e) {
+                throw new InvalidOperationException("condition", "Unrecognised time in '" + text + "'");
+            }
+        }
+        if (words.length != 3) {
+            throw new InvalidOperationException("condition",
+                    "Expected '<device>.<attribute> <op> <value>' or 'time between HH:mm and HH:mm', got '" + text + "'");
+        }
+        int dot = words[0].lastIndexOf('.');
+        if (dot <= 0 || dot == words[0].length() - 1) {
+            throw new InvalidOperationException("condition", "Expected '<device>.<attribute>', got '" + words[0] + "'");
+        }
+        String deviceId = words[0].substring(0, dot);
+        StateChange.Type attribute;
+        try {
+            attribute = StateChange.Type.valueOf(words[0].substring(dot + 1).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOperationException("condition", "Unknown attribute '" + words[0].substring(dot + 1) + "'");
+        }
+        Operator operator = Operator.fromSymbol(words[1]);
+        if (operator == null) {
+            throw new InvalidOperationException("condition", "Unknown operator '" + words[1] + "'");
+        }
+        String value = words[2];
+        if (isText(attribute)) {
+            if (operator != Operator.EQ && operator != Operator.NE) {
+                throw new InvalidOperationException("condition",
+                        attribute.name().toLowerCase(Locale.ROOT) + " only compares with == or !=");
+            }
+            return new Term(deviceId, attribute, operator, 0.0, value, null, null);
+        }
+        return new Term(deviceId, attribute, operator, parseNumber(value), null, null, null);
+    }
+
+    static boolean isText(StateChange.Type type) {
+        switch (type) {
+            case COLOR:
+            case MODE:
+            case INPUT:
+            case RESOLUTION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isFlag(StateChange.Type type) {
+        switch (type) {
+            case POWER:
+            case ONLINE:
+            case RECORDING:
+            case NIGHT_VISION:
+            case LOCKED:
+            case MOTION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static double parseNumber(String value) throws InvalidOperationException {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "true":
+            case "on":
+                return 1.0;
+            case "false":
+            case "off":
+                return 0.0;
+            default:
+                try {
+                    return Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    throw new InvalidOperationException("condition", "Expected a number or true/false, got '" + value + "'");
+                }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package smarthome;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Enabled event rules grouped by trigger device and condition, so an event
+// only looks at the rules it can actually fire. Buckets are copy-on-write
+// arrays kept in rule order; lookups never lock or allocate.
+class RuleIndex {
+
+    private static final AutomationRule[] NO_RULES = new AutomationRule[0];
+
+    private final Map<String, Map<String, AutomationRule[]>> byDevice;
+
+    RuleIndex() {
+        this.byDevice = new ConcurrentHashMap<String, Map<String, AutomationRule[]>>();
+    }
+
+    synchronized void add(AutomationRule rule) {
+        if (rule.getTriggerDeviceId() == null) {
+            return; // time-based rules are not driven by device events
+        }
+        Map<String, AutomationRule[]> byCondition = byDevice.get(rule.getTriggerDeviceId());
+        if (byCondition == null) {
+            byCondition = new ConcurrentHashMap<String, AutomationRule[]>();
+            byDevice.put(rule.getTriggerDeviceId(), byCondition);
+        }
+        String condition = normalizeCondition(rule.getTriggerCondition());
+        AutomationRule[] bucket = byCondition.get(condition);
+        if (bucket == null) {
+            byCondition.put(condition, new AutomationRule[]{rule});
+            return;
+        }
+        int pos = 0;
+        while (pos < bucket.length && bucket[pos].getSequence() < rule.getSequence()) {
+            if (bucket[pos] == rule) {
+                return;
+            }
+            pos++;
+        }
+        if (pos < bucket.length && bucket[pos] == rule) {
+            return;
+        }
+        AutomationRule[] grown = new AutomationRule[bucket.length + 1];
+        System.arraycopy(bucket, 0, grown, 0, pos);
+        grown[pos] = rule;
+        System.arraycopy(bucket, pos, grown, pos + 1, bucket.length - pos);
+        byCondition.put(condition, grown);
+    }
+
+    synchronized void remove(AutomationRule rule) {
+        if (rule.getTriggerDeviceId() == null) {
+            return;
+        }
+        Map<String, AutomationRule[]> byCondition = byDevice.get(rule.getTriggerDeviceId());
+        if (byCondition == null) {
+            return;
+        }
+        String condition = normalizeCondition(rule.getTriggerCondition());
+        AutomationRule[] bucket = byCondition.get(condition);
+        if (bucket == null) {
+            return;
+        }
+        int pos = Arrays.asList(bucket).indexOf(rule);
+        if (pos < 0) {
+            return;
+        }
+        if (bucket.length == 1) {
+            byCondition.remove(condition);
+            if (byCondition.isEmpty()) {
+                byDevice.remove(rule.getTriggerDeviceId());
+            }
+            return;
+        }
+        AutomationRule[] shrunk = new AutomationRule[bucket.length - 1];
+        System.arraycopy(bucket, 0, shrunk, 0, pos);
+        System.arraycopy(bucket, pos + 1, shrunk, pos, bucket.length - pos - 1);
+        byCondition.put(condition, shrunk);
+    }
+
+    AutomationRule[] lookup(String triggerDeviceId, String condition) {
+        if (triggerDeviceId == null || condition == null) {
+            return NO_RULES;
+        }
+        Map<String, AutomationRule[]> byCondition = byDevice.get(triggerDeviceId);
+        if (byCondition == null) {
+            return NO_RULES;
+        }
+        AutomationRule[] bucket = byCondition.get(normalizeCondition(condition));
+        return bucket != null ? bucket : NO_RULES;
+    }
+
+    static String normalizeCondition(String condition) {
+        return condition.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,485 @@
+package smarthome;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Compound rule conditions compiled into a discrimination network, Rete style:
+//
+//   alpha nodes  one per distinct term, holding whether it currently holds; indexed
+//                by device and attribute, so a state change only evaluates the terms
+//                on that attribute of that device
+//   join nodes   AND of two nodes, shared between rules whose sorted terms have a
+//                common prefix, each remembering its own result
+//   rules        attached to the node for their whole condition
+//
+// A change flips at most the alpha nodes it touches and propagates only while
+// results keep changing, so the cost is independent of how many rules exist.
+// Time windows are alpha nodes too, flipped by a timer at their boundaries.
+// A rule fires when its condition goes from false to true; a condition that
+// already holds when the rule is added waits for its next rising edge.
+final class RuleNetwork {
+
+    private static final ScheduledExecutorService WINDOW_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "rule-time-windows");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final Node[] NO_NODES = new Node[0];
+    private static final AutomationRule[] NO_RULES = new AutomationRule[0];
+    private static final int TYPES = StateChange.Type.values().length;
+
+    private abstract static class Node {
+        final String key;
+        boolean satisfied;
+        int refs;
+        Node[] joins = NO_NODES;
+        AutomationRule[] rules = NO_RULES;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class AlphaNode extends Node {
+        final RuleCondition.Term term;
+
+        AlphaNode(RuleCondition.Term term) {
+            super(term.key());
+            this.term = term;
+        }
+    }
+
+    private static final class JoinNode extends Node {
+        final Node left;
+        final Node right;
+
+        JoinNode(String key, Node left, Node right) {
+            super(key);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private final DeviceController controller;
+    private final Home home;
+    private final Clock clock;
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+    private final Map<String, AlphaNode[][]> byDevice = new HashMap<String, AlphaNode[][]>();
+    private final List<AlphaNode> windows = new ArrayList<AlphaNode>();
+    private final Map<AutomationRule, Node> ruleNodes = new HashMap<AutomationRule, Node>();
+    private final int[] alphasByType = new int[TYPES];
+    private final Runnable windowTask;
+    private StateChangeBus.Subscription subscription;
+    private long subscribedMask;
+    private ScheduledFuture<?> pendingWindow;
+    private long evaluations;
+    private boolean closed;
+
+    RuleNetwork(DeviceController controller, Home home, Clock clock) {
+        this.controller = controller;
+        this.home = home;
+        this.clock = clock;
+        final Runnable windowCheck = new Runnable() {
+            public void run() {
+                runTimeWindows();
+            }
+        };
+        // The timer thread only hands the check to the home, which may be on a shard
+        this.windowTask = new Runnable() {
+            public void run() {
+                controller.runOnHome(windowCheck);
+            }
+        };
+    }
+
+    synchronized void add(AutomationRule rule) {
+        if (ruleNodes.containsKey(rule)) {
+            return;
+        }
+        List<RuleCondition.Term> terms = rule.getCondition().getTerms();
+        Node top = alpha(terms.get(0));
+        top.refs++;
+        for (int i = 1; i < terms.size(); i++) {
+            Node right = alpha(terms.get(i));
+            right.refs++;
+            top = join(top, right);
+            top.refs++;
+        }
+        top.rules = append(top.rules, rule);
+        ruleNodes.put(rule, top);
+        resubscribe();
+    }
+
+    synchronized void remove(AutomationRule rule) {
+        Node top = ruleNodes.remove(rule);
+        if (top == null) {
+            return;
+        }
+        top.rules = without(top.rules, rule);
+        release(top);
+        resubscribe();
+    }
+
+    // Drops the bus subscription and the window timer; rules added later stay inert
+    synchronized void close() {
+        closed = true;
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        subscribedMask = 0L;
+        if (pendingWindow != null) {
+            pendingWindow.cancel(false);
+            pendingWindow = null;
+        }
+    }
+
+    synchronized int getNodeCount() {
+        return nodes.size();
+    }
+
+    // Terms evaluated so far, to confirm a change only touches the terms it can affect
+    synchronized long getEvaluationCount() {
+        return evaluations;
+    }
+
+    // Re-evaluates the time windows against the clock and fires the rules they
+    // complete. The timer calls this at every boundary; it can also be driven directly.
+    int runTimeWindows() {
+        List<AutomationRule> activated = new ArrayList<AutomationRule>();
+        synchronized (this) {
+            LocalTime now = LocalDateTime.ofInstant(Instant.ofEpochMilli(clock.millis()), clock.getZone())
+                    .toLocalTime();
+            for (AlphaNode window : windows) {
+                evaluations++;
+                update(window, window.term.test(now), activated);
+            }
+            armWindowTimer();
+        }
+        return fire(activated);
+    }
+
+    // Re-reads every device term from the devices without firing anything, after their
+    // state changed unpublished (journal replay). Like a newly added rule, a condition
+    // that holds now waits for its next rising edge.
+    synchronized void resync() {
+        List<AutomationRule> ignored = new ArrayList<AutomationRule>();
+        for (Node node : nodes.values()) {
+            if (node instanceof AlphaNode && !((AlphaNode) node).term.isTimeWindow()) {
+                evaluations++;
+                update(node, currentlyHolds(((AlphaNode) node).term), ignored);
+            }
+        }
+    }
+
+    private void onStateChange(StateChange change) {
+        List<AutomationRule> activated = null;
+        synchronized (this) {
+            AlphaNode[][] byType = byDevice.get(change.getDeviceId());
+            AlphaNode[] alphas = byType == null ? null : byType[change.getType().ordinal()];
+            if (alphas == null) {
+                return;
+            }
+            for (AlphaNode alpha : alphas) {
+                evaluations++;
+                boolean holds = RuleCondition.isText(change.getType())
+                        ? alpha.term.test(change.getTextValue())
+                        : alpha.term.test(change.getDoubleValue());
+                if (holds != alpha.satisfied) {
+                    if (activated == null) {
+                        activated = new ArrayList<AutomationRule>(2);
+                    }
+                    update(alpha, holds, activated);
+                }
+            }
+        }
+        if (activated != null) {
+            fire(activated);
+        }
+    }
+
+    private int fire(List<AutomationRule> activated) {
+        if (activated.isEmpty()) {
+            return 0;
+        }
+        long now = controller.startTiming();
+        for (AutomationRule rule : activated) {
+            if (rule.isEnabled()) {
+                now = controller.fireRule(rule, now);
+            }
+        }
+        controller.syncJournal();
+        return activated.size();
+    }
+
+    private void update(Node node, boolean holds, List<AutomationRule> activated) {
+        if (node.satisfied == holds) {
+            return;
+        }
+        node.satisfied = holds;
+        if (holds) {
+            for (AutomationRule rule : node.rules) {
+                activated.add(rule);
+            }
+        }
+        for (Node next : node.joins) {
+            JoinNode join = (JoinNode) next;
+            update(join, join.left.satisfied && join.right.satisfied, activated);
+        }
+    }
+
+    private Node alpha(RuleCondition.Term term) {
+        Node existing = nodes.get(term.key());
+        if (existing != null) {
+            return existing;
+        }
+        AlphaNode alpha = new AlphaNode(term);
+        if (term.isTimeWindow()) {
+            alpha.satisfied = term.test(LocalDateTime.ofInstant(Instant.ofEpochMilli(clock.millis()),
+                    clock.getZone()).toLocalTime());
+            windows.add(alpha);
+            armWindowTimer();
+        } else {
+            alpha.satisfied = currentlyHolds(term);
+            AlphaNode[][] byType = byDevice.get(term.getDeviceId());
+            if (byType == null) {
+                byType = new AlphaNode[TYPES][];
+                byDevice.put(term.getDeviceId(), byType);
+            }
+            int slot = term.getAttribute().ordinal();
+            byType[slot] = byType[slot] == null ? new AlphaNode[]{alpha} : append(byType[slot], alpha);
+            alphasByType[slot]++;
+        }
+        nodes.put(alpha.key, alpha);
+        return alpha;
+    }
+
+    private Node join(Node left, Node right) {
+        String key = "(" + left.key + ") and (" + right.key + ")";
+        Node existing = nodes.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        JoinNode join = new JoinNode(key, left, right);
+        join.satisfied = left.satisfied && right.satisfied;
+        left.joins = append(left.joins, join);
+        right.joins = append(right.joins, join);
+        nodes.put(key, join);
+        return join;
+    }
+
+    // A rule holds one reference on every node of its chain, so walk the whole chain
+    private void release(Node node) {
+        node.refs--;
+        if (node instanceof JoinNode) {
+            JoinNode join = (JoinNode) node;
+            if (node.refs == 0) {
+                nodes.remove(node.key);
+                join.left.joins = without(join.left.joins, join);
+                join.right.joins = without(join.right.joins, join);
+            }
+            release(join.left);
+            release(join.right);
+            return;
+        }
+        if (node.refs > 0) {
+            return;
+        }
+        nodes.remove(node.key);
+        AlphaNode alpha = (AlphaNode) node;
+        if (alpha.term.isTimeWindow()) {
+            windows.remove(alpha);
+            armWindowTimer();
+            return;
+        }
+        AlphaNode[][] byType = byDevice.get(alpha.term.getDeviceId());
+        int slot = alpha.term.getAttribute().ordinal();
+        alphasByType[slot]--;
+        AlphaNode[] rest = without(byType[slot], alpha);
+        byType[slot] = rest.length == 0 ? null : rest;
+        for (AlphaNode[] alphas : byType) {
+            if (alphas != null) {
+                return;
+            }
+        }
+        byDevice.remove(alpha.term.getDeviceId());
+    }
+
+    // Keeps one bus subscription covering exactly the attributes some term reads,
+    // so devices still skip publishing changes nothing is interested in
+    private void resubscribe() {
+        if (closed) {
+            return;
+        }
+        long mask = 0L;
+        for (int i = 0; i < TYPES; i++) {
+            if (alphasByType[i] > 0) {
+                mask |= 1L << i;
+            }
+        }
+        if (mask == subscribedMask) {
+            return;
+        }
+        Set<StateChange.Type> types = EnumSet.noneOf(StateChange.Type.class);
+        for (StateChange.Type type : StateChange.Type.values()) {
+            if ((mask & type.bit()) != 0L) {
+                types.add(type);
+            }
+        }
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        subscribedMask = mask;
+        if (mask != 0L) {
+            subscription = home.getStateChangeBus().subscribe(null, null, types, new StateChangeBus.Listener() {
+                public void onStateChange(StateChange change) {
+                    RuleNetwork.this.onStateChange(change);
+                }
+            });
+        }
+    }
+
+    private void armWindowTimer() {
+        if (pendingWindow != null) {
+            pendingWindow.cancel(false);
+            pendingWindow = null;
+        }
+        if (windows.isEmpty() || closed) {
+            return;
+        }
+        long nowMillis = clock.millis();
+        LocalDateTime now = LocalDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), clock.getZone());
+        long next = Long.MAX_VALUE;
+        for (AlphaNode window : windows) {
+            next = Math.min(next, nextBoundary(now, window.term.getWindowStart()));
+            next = Math.min(next, nextBoundary(now, window.term.getWindowEnd()));
+        }
+        pendingWindow = WINDOW_TIMER.schedule(windowTask, Math.max(0L, next - nowMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private long nextBoundary(LocalDateTime now, LocalTime boundary) {
+        LocalDateTime at = now.toLocalDate().atTime(boundary);
+        if (!at.isAfter(now)) {
+            at = at.plusDays(1);
+        }
+        return at.atZone(clock.getZone()).toInstant().toEpochMilli();
+    }
+
+    // Current value of the attribute a term reads; false when the device is missing,
+    // of another type, or only becomes known with its first state change
+    private boolean currentlyHolds(RuleCondition.Term term) {
+        SmartDevice device = home.findDevice(term.getDeviceId());
+        if (device == null) {
+            return false;
+        }
+        switch (term.getAttribute()) {
+            case POWER:
+                return term.test(flag(device.isOn()));
+            case ONLINE:
+                return term.test(flag(device.isOnline()));
+            case BRIGHTNESS:
+                return device instanceof Light && term.test(((Light) device).getBrightness());
+            case COLOR:
+                return device instanceof Light && term.test(((Light) device).getColor());
+            case TARGET_TEMPERATURE:
+                return device instanceof Thermostat && term.test(((Thermostat) device).getTargetTemperature());
+            case CURRENT_TEMPERATURE:
+                return device instanceof Thermostat && term.test(((Thermostat) device).getCurrentTemperature());
+            case MODE:
+                return device instanceof Thermostat && term.test(((Thermostat) device).getMode());
+            case VOLUME:
+                return device instanceof SmartTV && term.test(((SmartTV) device).getVolume());
+            case CHANNEL:
+                return device instanceof SmartTV && term.test(((SmartTV) device).getChannel());
+            case INPUT:
+                return device instanceof SmartTV && term.test(((SmartTV) device).getInput());
+            case RECORDING:
+                return device instanceof SecurityCamera && term.test(flag(((SecurityCamera) device).isRecording()));
+            case RESOLUTION:
+                return device instanceof SecurityCamera && term.test(((SecurityCamera) device).getResolution());
+            case NIGHT_VISION:
+                return device instanceof SecurityCamera && term.test(flag(((SecurityCamera) device).hasNightVision()));
+            case LOCKED:
+                return device instanceof SmartLock && term.test(flag(((SmartLock) device).isLocked()));
+            case MOTION:
+                return device instanceof MotionSensor && term.test(flag(((MotionSensor) device).isMotionDetected()));
+            case SENSITIVITY:
+                return device instanceof MotionSensor && term.test(((MotionSensor) device).getSensitivityLevel());
+            default:
+                return false;
+        }
+    }
+
+    private static double flag(boolean value) {
+        return value ? 1.0 : 0.0;
+    }
+
+    private static AlphaNode[] append(AlphaNode[] array, AlphaNode node) {
+        AlphaNode[] grown = new AlphaNode[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        grown[array.length] = node;
+        return grown;
+    }
+
+    private static Node[] append(Node[] array, Node node) {
+        Node[] grown = new Node[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        grown[array.length] = node;
+        return grown;
+    }
+
+    private static AutomationRule[] append(AutomationRule[] array, AutomationRule rule) {
+        AutomationRule[] grown = new AutomationRule[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        grown[array.length] = rule;
+        return grown;
+    }
+
+    private static AlphaNode[] without(AlphaNode[] array, AlphaNode node) {
+        List<AlphaNode> rest = new ArrayList<AlphaNode>(array.length);
+        for (AlphaNode each : array) {
+            if (each != node) {
+                rest.add(each);
+            }
+        }
+        return rest.toArray(new AlphaNode[0]);
+    }
+
+    private static Node[] without(Node[] array, Node node) {
+        List<Node> rest = new ArrayList<Node>(array.length);
+        for (Node each : array) {
+            if (each != node) {
+                rest.add(each);
+            }
+        }
+        return rest.toArray(NO_NODES);
+    }
+
+    private static AutomationRule[] without(AutomationRule[] array, AutomationRule rule) {
+        List<AutomationRule> rest = new ArrayList<AutomationRule>(array.length);
+        for (AutomationRule each : array) {
+            if (each != rule) {
+                rest.add(each);
+            }
+        }
+        return rest.toArray(NO_RULES);
+    }
+}
@@ -0,0 +1,214 @@
+package smarthome;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Fires time-based automation rules. Pending rules sit in a priority queue ordered
+// by their next fire instant and one timer is armed for the head, so idle time costs
+// nothing no matter how many rules are scheduled. The timer thread is shared by all
+// schedulers and only hands due rules to the controller's home (its shard when the
+// home is in a HomeRegistry), so rules never run beside the home's other work.
+public class RuleScheduler {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "rule-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final class Entry implements Comparable<Entry> {
+        final AutomationRule rule;
+        final long fireAtMillis;
+        boolean cancelled;
+
+        Entry(AutomationRule rule, long fireAtMillis) {
+            this.rule = rule;
+            this.fireAtMillis = fireAtMillis;
+        }
+
+        public int compareTo(Entry other) {
+            return Long.compare(fireAtMillis, other.fireAtMillis);
+        }
+    }
+
+    private final DeviceController controller;
+    private final Clock clock;
+    private PriorityQueue<Entry> queue;
+    private final Map<AutomationRule, Entry> pending;
+    private int cancelledCount;
+    private final Runnable fireTask;
+    private ScheduledFuture<?> timer;
+    private long timerAtMillis;
+    private boolean running;
+
+    public RuleScheduler(DeviceController controller, Clock clock) {
+        this.controller = controller;
+        this.clock = clock;
+        this.queue = new PriorityQueue<Entry>();
+        this.pending = new HashMap<AutomationRule, Entry>();
+        final Runnable dueTask = new Runnable() {
+            public void run() {
+                if (isRunning()) {
+                    runDue();
+                    arm();
+                }
+            }
+        };
+        this.fireTask = new Runnable() {
+            public void run() {
+                synchronized (RuleScheduler.this) {
+                    if (!running) {
+                        return;
+                    }
+                    timer = null;
+                }
+                RuleScheduler.this.controller.runOnHome(dueTask);
+            }
+        };
+    }
+
+    public synchronized void schedule(AutomationRule rule) {
+        cancel(rule);
+        LocalDateTime next = rule.nextFireTime(LocalDateTime.now(clock));
+        if (next == null) {
+            return;
+        }
+        Entry entry = new Entry(rule, toMillis(next));
+        pending.put(rule, entry);
+        queue.add(entry);
+        if (queue.peek() == entry) {
+            arm(); // new earliest deadline
+        }
+    }
+
+    // Cancelled entries stay in the heap until they reach the head, which keeps cancel O(1).
+    // Once they make up half the heap it is rebuilt from the live entries, so toggling a
+    // rule whose next slot is far off cannot grow the heap without bound.
+    public synchronized void cancel(AutomationRule rule) {
+        Entry entry = pending.remove(rule);
+        if (entry != null) {
+            entry.cancelled = true;
+            cancelledCount++;
+            if (cancelledCount > queue.size() / 2) {
+                queue = new PriorityQueue<Entry>(pending.values());
+                cancelledCount = 0;
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        arm();
+    }
+
+    // A batch already handed to the home still finds the scheduler stopped and skips
+    public synchronized void shutdown() {
+        running = false;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized Instant getNextFireTime() {
+        Entry head = peekLive();
+        return head == null ? null : Instant.ofEpochMilli(head.fireAtMillis);
+    }
+
+    // Fires everything that is due at the current clock time; returns the number of rules fired.
+    // The timer calls this through the home, and it can be driven directly when not started.
+    public int runDue() {
+        int fired = 0;
+        while (true) {
+            Entry due;
+            synchronized (this) {
+                Entry head = peekLive();
+                if (head == null || head.fireAtMillis > clock.millis()) {
+                    break;
+                }
+                due = queue.poll();
+                pending.remove(due.rule);
+                // Compute the next occurrence from the later of the slot and now so a
+                // long pause fires once instead of replaying every missed slot
+                long from = Math.max(due.fireAtMillis, clock.millis());
+                LocalDateTime next = due.rule.nextFireTime(
+                        LocalDateTime.ofInstant(Instant.ofEpochMilli(from), zone()));
+                if (next != null) {
+                    Entry again = new Entry(due.rule, toMillis(next));
+                    pending.put(due.rule, again);
+                    queue.add(again);
+                }
+            }
+            if (due.rule.isEnabled()) {
+                controller.fireRule(due.rule, controller.startTiming());
+                fired++;
+            }
+        }
+        if (fired > 0) {
+            controller.syncJournal();
+        }
+        return fired;
+    }
+
+    // Points the timer at the live head; a timer already due no later than it is kept
+    private synchronized void arm() {
+        if (!running) {
+            return;
+        }
+        Entry head = peekLive();
+        if (timer != null) {
+            if (head != null && timerAtMillis <= head.fireAtMillis) {
+                return;
+            }
+            timer.cancel(false);
+            timer = null;
+        }
+        if (head != null) {
+            timerAtMillis = head.fireAtMillis;
+            timer = TIMER.schedule(fireTask, Math.max(0L, head.fireAtMillis - clock.millis()),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Entry peekLive() {
+        Entry head = queue.peek();
+        while (head != null && head.cancelled) {
+            queue.poll();
+            cancelledCount--;
+            head = queue.peek();
+        }
+        return head;
+    }
+
+    private ZoneId zone() {
+        return clock.getZone();
+    }
+
+    private long toMillis(LocalDateTime time) {
+        return time.atZone(zone()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,86 @@
+package smarthome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A named set of target device states, e.g. "Movie night". Targets are kept as
+// written and only bound to devices by compile(), which produces a ScenePlan that
+// can be applied any number of times.
+public class Scene {
+
+    public static final class Target {
+        private final String device;   // device id or name
+        private final String command;
+        private final Object value;
+
+        Target(String device, String command, Object value) {
+            this.device = device;
+            this.command = command;
+            this.value = value;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    private final String name;
+    private final List<Target> targets;
+
+    public Scene(String name) {
+        this.name = name;
+        this.targets = new ArrayList<Target>();
+    }
+
+    // Targets for one device are applied in the order they were added
+    public Scene set(String device, String command, Object value) {
+        targets.add(new Target(device, command, value));
+        return this;
+    }
+
+    public Scene turnOn(String device) {
+        return set(device, DeviceOperation.TURN_ON.getCommand(), null);
+    }
+
+    public Scene turnOff(String device) {
+        return set(device, DeviceOperation.TURN_OFF.getCommand(), null);
+    }
+
+    // Resolves every target once; devices are looked up by id first, then by name.
+    // Compile again after devices are added or replaced.
+    public ScenePlan compile(DeviceController controller)
+            throws DeviceNotFoundException, InvalidOperationException {
+        CommandHandle[] steps = new CommandHandle[targets.size()];
+        for (int i = 0; i < steps.length; i++) {
+            Target target = targets.get(i);
+            SmartDevice device = controller.getHome().findDevice(target.device);
+            if (device == null) {
+                device = controller.findDeviceByName(target.device);
+            }
+            steps[i] = CommandHandle.resolve(device, target.command, target.value);
+        }
+        return new ScenePlan(this, controller, steps);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    @Override
+    public String toString() {
+        return "Scene: " + name + " (" + targets.size() + " targets)";
+    }
+}
@@ -0,0 +1,50 @@
+package smarthome;
+
+// A compiled scene: a flat array of resolved command handles. apply() makes one
+// pass over it, skips steps whose device is already in the target state and
+// records failures without stopping, then logs a single summary entry.
+public final class ScenePlan {
+
+    private final Scene scene;
+    private final DeviceController controller;
+    private final CommandHandle[] steps;
+
+    ScenePlan(Scene scene, DeviceController controller, CommandHandle[] steps) {
+        this.scene = scene;
+        this.controller = controller;
+        this.steps = steps;
+    }
+
+    public BulkResult apply() {
+        SmartDevice[] devices = new SmartDevice[steps.length];
+        Throwable[] errors = new Throwable[steps.length];
+        boolean[] skipped = new boolean[steps.length];
+        int changed = 0;
+        for (int i = 0; i < steps.length; i++) {
+            CommandHandle step = steps[i];
+            devices[i] = step.getDevice();
+            if (step.isSatisfied()) {
+                skipped[i] = true;
+                continue;
+            }
+            try {
+                controller.executeNoSync(step, null);
+                changed++;
+            } catch (DeviceOfflineException e) {
+                errors[i] = e;
+            }
+        }
+        controller.syncJournal();
+        BulkResult result = new BulkResult(devices, errors, skipped);
+        EventLog.info(null, scene.getName(), "scene applied, changes:", Integer.toString(changed));
+        return result;
+    }
+
+    public Scene getScene() {
+        return scene;
+    }
+
+    public int getStepCount() {
+        return steps.length;
+    }
+}
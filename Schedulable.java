@@ -1,7 +1,7 @@
 package smarthome;
 
 public interface Schedulable {
-    void scheduleAction(String action, String time);
-    void cancelSchedule(String schedule);
+    String scheduleAction(String action, String time) throws InvalidOperationException;  // returns the schedule id
+    boolean cancelSchedule(String schedule);  // a schedule id or its "<action> at <time>" text
     String[] getScheduledActions();
 }
@@ -0,0 +1,512 @@
+package smarthome;
+
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Scheduled actions of every Schedulable device, ordered by next run time. Entries
+// sit in a binary heap that tracks each entry's slot, so cancelling by id is a map
+// lookup plus an O(log n) sift rather than a scan, and a single worker thread
+// sleeps until the earliest entry is due.
+//
+// Actions are parsed once into a CommandHandle: "turn_on", "turn_off", or a command
+// and its value such as "brightness 40" or "temperature 21.5". Times are "HH:mm"
+// (daily), "HH:mm once|daily|weekdays|weekends", or an ISO date-time such as
+// "2026-01-31T07:30" for a single run.
+//
+// A due action runs through the controller of the device's home, so it is journaled,
+// metered and confined to the home's shard like a command from anywhere else; a
+// device outside a controlled home runs it directly. Devices leave the index when
+// they are removed from their room.
+public class ScheduleIndex {
+
+    public enum Recurrence {
+        ONCE, DAILY, WEEKDAYS, WEEKENDS
+    }
+
+    public static final class Entry {
+        private final long id;
+        private final CommandHandle command;
+        private final String action;
+        private final String time;
+        private final LocalTime timeOfDay;
+        private final Recurrence recurrence;
+        private volatile long nextRunMillis;
+        private int heapIndex = -1;
+
+        private Entry(long id, CommandHandle command, String action, String time,
+                      LocalTime timeOfDay, Recurrence recurrence, long nextRunMillis) {
+            this.id = id;
+            this.command = command;
+            this.action = action;
+            this.time = time;
+            this.timeOfDay = timeOfDay;
+            this.recurrence = recurrence;
+            this.nextRunMillis = nextRunMillis;
+        }
+
+        public String getId() {
+            return ID_PREFIX + id;
+        }
+
+        public SmartDevice getDevice() {
+            return command.getDevice();
+        }
+
+        public CommandHandle getCommand() {
+            return command;
+        }
+
+        public LocalTime getTimeOfDay() {
+            return timeOfDay;
+        }
+
+        public Recurrence getRecurrence() {
+            return recurrence;
+        }
+
+        public Instant getNextRunTime() {
+            return Instant.ofEpochMilli(nextRunMillis);
+        }
+
+        // The "<action> at <time>" text devices have always reported
+        public String describe() {
+            return action + " at " + time;
+        }
+    }
+
+    private static final String ID_PREFIX = "sch-";
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ScheduleIndex SHARED = new ScheduleIndex(Clock.systemDefaultZone());
+
+    static {
+        SHARED.start();
+    }
+
+    private final Clock clock;
+    private Entry[] heap = new Entry[INITIAL_CAPACITY];
+    private int size;
+    private final Map<Long, Entry> byId = new HashMap<Long, Entry>();
+    private final Map<SmartDevice, List<Entry>> byDevice = new IdentityHashMap<SmartDevice, List<Entry>>();
+    private long nextId = 1L;
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private Thread worker;
+    private boolean running;
+
+    public ScheduleIndex(Clock clock) {
+        this.clock = clock;
+    }
+
+    // The index devices schedule into; its worker is already running
+    public static ScheduleIndex shared() {
+        return SHARED;
+    }
+
+    public Entry add(SmartDevice device, String action, String time) throws InvalidOperationException {
+        CommandHandle command = parseAction(device, action);
+        String spec = time == null ? "" : time.trim();
+        int space = spec.indexOf(' ');
+        String clockPart = space < 0 ? spec : spec.substring(0, space);
+        String recurrencePart = space < 0 ? null : spec.substring(space + 1).trim();
+        LocalTime timeOfDay;
+        Recurrence recurrence;
+        long first;
+        if (recurrencePart == null && spec.indexOf('T') > 0) {
+            LocalDateTime at;
+            try {
+                at = LocalDateTime.parse(spec);
+            } catch (DateTimeParseException e) {
+                throw new InvalidOperationException("schedule", "Unrecognised time '" + time + "'");
+            }
+            first = toMillis(at);
+            if (first <= clock.millis()) {
+                throw new InvalidOperationException("schedule", "Time '" + time + "' is in the past");
+            }
+            timeOfDay = at.toLocalTime();
+            recurrence = Recurrence.ONCE;
+        } else {
+            timeOfDay = parseTimeOfDay(clockPart);
+            if (timeOfDay == null) {
+                throw new InvalidOperationException("schedule", "Unrecognised time '" + time + "'");
+            }
+            recurrence = recurrencePart == null ? Recurrence.DAILY : parseRecurrence(recurrencePart);
+            first = nextRun(timeOfDay, recurrence, clock.millis());
+        }
+        synchronized (this) {
+            Entry entry = new Entry(nextId++, command, action.trim(), spec, timeOfDay, recurrence, first);
+            byId.put(entry.id, entry);
+            List<Entry> own = byDevice.get(device);
+            if (own == null) {
+                own = new ArrayList<Entry>(2);
+                byDevice.put(device, own);
+            }
+            own.add(entry);
+            offer(entry);
+            if (heap[0] == entry) {
+                notifyAll(); // new earliest deadline, let the worker re-arm its wait
+            }
+            return entry;
+        }
+    }
+
+    public synchronized boolean cancel(String id) {
+        Entry entry = lookup(id);
+        if (entry == null) {
+            return false;
+        }
+        remove(entry);
+        return true;
+    }
+
+    // Accepts one of the device's schedule ids or, for older callers, its
+    // "<action> at <time>" text; the first matching entry is cancelled
+    public synchronized boolean cancel(SmartDevice device, String schedule) {
+        Entry entry = lookup(schedule);
+        if (entry == null || entry.getDevice() != device) {
+            entry = null;
+            List<Entry> own = byDevice.get(device);
+            if (own != null) {
+                for (Entry candidate : own) {
+                    if (candidate.describe().equals(schedule)) {
+                        entry = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        if (entry == null) {
+            return false;
+        }
+        remove(entry);
+        return true;
+    }
+
+    public synchronized int cancelAll(SmartDevice device) {
+        List<Entry> own = byDevice.get(device);
+        if (own == null) {
+            return 0;
+        }
+        List<Entry> copy = new ArrayList<Entry>(own);
+        for (Entry entry : copy) {
+            remove(entry);
+        }
+        return copy.size();
+    }
+
+    // Entries of one device in the order they were added
+    public synchronized List<Entry> getEntries(SmartDevice device) {
+        List<Entry> own = byDevice.get(device);
+        return own == null ? Collections.<Entry>emptyList() : new ArrayList<Entry>(own);
+    }
+
+    public synchronized String[] describe(SmartDevice device) {
+        List<Entry> own = byDevice.get(device);
+        if (own == null) {
+            return new String[0];
+        }
+        String[] text = new String[own.size()];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = own.get(i).describe();
+        }
+        return text;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized Instant getNextRunTime() {
+        return size == 0 ? null : Instant.ofEpochMilli(heap[0].nextRunMillis);
+    }
+
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        }, "device-schedules");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = worker;
+            worker = null;
+            notifyAll();
+        }
+        try {
+            t.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    // Starts everything due at the current clock time and returns how many entries it
+    // started; one whose home is in a HomeRegistry finishes later on the home's shard.
+    // The worker thread calls this, and it can be driven directly when no worker is started.
+    public int runDue() {
+        int ran = 0;
+        while (true) {
+            Entry due;
+            synchronized (this) {
+                if (size == 0 || heap[0].nextRunMillis > clock.millis()) {
+                    break;
+                }
+                due = heap[0];
+                if (due.recurrence == Recurrence.ONCE) {
+                    remove(due);
+                } else {
+                    // Same catch-up rule as RuleScheduler: after a long pause run once,
+                    // then continue from now instead of replaying every missed slot
+                    long from = Math.max(due.nextRunMillis, clock.millis());
+                    due.nextRunMillis = nextRun(due.timeOfDay, due.recurrence, from);
+                    siftDown(0);
+                }
+            }
+            // Outside the index lock: executing takes the device monitor
+            Home home = due.getDevice().getHome();
+            DeviceController controller = home == null ? null : home.getController();
+            if (controller == null) {
+                run(due, null);
+            } else {
+                controller.runScheduled(this, due);
+            }
+            ran++;
+        }
+        return ran;
+    }
+
+    // Counted here whichever thread the controller runs it on
+    void run(Entry due, DeviceController controller) {
+        try {
+            if (controller == null) {
+                due.command.execute();
+            } else {
+                controller.execute(due.command);
+            }
+            executed.incrementAndGet();
+        } catch (DeviceOfflineException e) {
+            failed.incrementAndGet();
+            EventLog.warn(due.getDevice(), "skipped schedule", due.describe() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            EventLog.warn(due.getDevice(), "schedule failed", due.describe() + ": " + e.getMessage());
+        }
+    }
+
+    private void runLoop() {
+        while (true) {
+            synchronized (this) {
+                if (!running) {
+                    return;
+                }
+                long delay = size == 0 ? 0L : heap[0].nextRunMillis - clock.millis();
+                if (size == 0 || delay > 0) {
+                    try {
+                        wait(size == 0 ? 0L : delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            runDue();
+        }
+    }
+
+    private Entry lookup(String id) {
+        if (id == null || !id.startsWith(ID_PREFIX)) {
+            return null;
+        }
+        try {
+            return byId.get(Long.parseLong(id.substring(ID_PREFIX.length())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void remove(Entry entry) {
+        int i = entry.heapIndex;
+        if (i < 0) {
+            return;
+        }
+        byId.remove(entry.id);
+        List<Entry> own = byDevice.get(entry.getDevice());
+        own.remove(entry);
+        if (own.isEmpty()) {
+            byDevice.remove(entry.getDevice());
+        }
+        entry.heapIndex = -1;
+        size--;
+        if (i == size) {
+            heap[size] = null;
+            return;
+        }
+        Entry last = heap[size];
+        heap[size] = null;
+        place(last, i);
+        siftUp(i);
+        siftDown(last.heapIndex);
+    }
+
+    private void offer(Entry entry) {
+        if (size == heap.length) {
+            Entry[] grown = new Entry[size * 2];
+            System.arraycopy(heap, 0, grown, 0, size);
+            heap = grown;
+        }
+        place(entry, size);
+        size++;
+        siftUp(entry.heapIndex);
+    }
+
+    private void siftUp(int i) {
+        Entry entry = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].nextRunMillis <= entry.nextRunMillis) {
+                break;
+            }
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(entry, i);
+    }
+
+    private void siftDown(int i) {
+        Entry entry = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && heap[right].nextRunMillis < heap[child].nextRunMillis) {
+                child = right;
+            }
+            if (entry.nextRunMillis <= heap[child].nextRunMillis) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(entry, i);
+    }
+
+    private void place(Entry entry, int i) {
+        heap[i] = entry;
+        entry.heapIndex = i;
+    }
+
+    private long nextRun(LocalTime timeOfDay, Recurrence recurrence, long afterMillis) {
+        LocalDateTime after = LocalDateTime.ofInstant(Instant.ofEpochMilli(afterMillis), zone());
+        LocalDateTime candidate = after.toLocalDate().atTime(timeOfDay);
+        if (!candidate.isAfter(after)) {
+            candidate = candidate.plusDays(1);
+        }
+        while (!runsOn(recurrence, candidate.getDayOfWeek())) {
+            candidate = candidate.plusDays(1);
+        }
+        return toMillis(candidate);
+    }
+
+    private static boolean runsOn(Recurrence recurrence, DayOfWeek day) {
+        boolean weekend = day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY;
+        switch (recurrence) {
+            case WEEKDAYS:
+                return !weekend;
+            case WEEKENDS:
+                return weekend;
+            default:
+                return true;
+        }
+    }
+
+    // "HH:mm" and "HH:mm:ss" are read directly, since bulk imports schedule hundreds of
+    // thousands of entries and the formatter-based parse is far slower; anything else
+    // goes through LocalTime.parse. Null when the text is not a time.
+    private static LocalTime parseTimeOfDay(String text) {
+        int length = text.length();
+        if ((length == 5 || length == 8) && text.charAt(2) == ':' && (length == 5 || text.charAt(5) == ':')) {
+            int hour = twoDigits(text, 0);
+            int minute = twoDigits(text, 3);
+            int second = length == 8 ? twoDigits(text, 6) : 0;
+            if (hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                return LocalTime.of(hour, minute, second);
+            }
+            return null;
+        }
+        try {
+            return LocalTime.parse(text);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static int twoDigits(String text, int at) {
+        char high = text.charAt(at);
+        char low = text.charAt(at + 1);
+        if (high < '0' || high > '9' || low < '0' || low > '9') {
+            return -1;
+        }
+        return (high - '0') * 10 + (low - '0');
+    }
+
+    private static Recurrence parseRecurrence(String text) throws InvalidOperationException {
+        try {
+            return Recurrence.valueOf(text.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidOperationException("schedule", "Unknown recurrence '" + text + "'");
+        }
+    }
+
+    private static CommandHandle parseAction(SmartDevice device, String action) throws InvalidOperationException {
+        String text = action == null ? "" : action.trim();
+        int space = text.indexOf(' ');
+        String command = space < 0 ? text : text.substring(0, space);
+        String value = space < 0 ? null : text.substring(space + 1).trim();
+        return CommandHandle.resolve(device, command, value);
+    }
+
+    private ZoneId zone() {
+        return clock.getZone();
+    }
+
+    private long toMillis(LocalDateTime time) {
+        return time.atZone(zone()).toInstant().toEpochMilli();
+    }
+}
@@ -1,60 +1,112 @@
 package smarthome;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
 public class SecurityCamera extends SmartDevice implements Controllable, EnergyConsumer {
 
-    private boolean isRecording = false;
-    private String resolution = "1080p";
-    private boolean nightVision = true;
+    private static final Set<DeviceOperation> OPERATIONS =
+            Collections.unmodifiableSet(EnumSet.of(
+                    DeviceOperation.RECORD,
+                    DeviceOperation.RESOLUTION,
+                    DeviceOperation.NIGHT_VISION));
+
+    private volatile boolean isRecording = false;
+    private volatile String resolution = "1080p";
+    private volatile boolean nightVision = true;
 
     public SecurityCamera(String id, String name, String roomId) {
         super(id, name, roomId);
     }
 
-    public void turnOn() {
+    public synchronized void turnOn() {
         if (!isOnline) {
-            System.out.println(name + " is offline.");
+            EventLog.warn(this, "is offline.");
         } else {
             isOn = true;
-            System.out.println(name + " camera activated. Resolution: " + resolution);
+            energyChanged();
+            stateChanged(StateChange.Type.POWER, true);
+            EventLog.info(this, "{name} camera activated. Resolution: {}", resolution);
         }
     }
 
-    public void turnOff() {
+    public synchronized void turnOff() {
+        boolean wasRecording = isRecording;
         isOn = false;
         isRecording = false;
-        System.out.println(name + " camera deactivated");
+        energyChanged();
+        stateChanged(StateChange.Type.POWER, false);
+        if (wasRecording) {
+            stateChanged(StateChange.Type.RECORDING, false);
+        }
+        EventLog.info(this, "camera deactivated");
     }
 
     public String getStatus() {
-        return String.format(
-                "SecurityCamera: %s | %s | Recording: %s | Resolution: %s | NightVision: %s",
-                name,
-                isOn ? "ON" : "OFF",
-                isRecording ? "YES" : "NO",
-                resolution,
-                nightVision ? "ON" : "OFF"
-        );
-    }
-
-    public void control(String command, Object value) {
-        if (command == null) return;
-        switch (command.toLowerCase()) {
-            case "record":
-                setRecording((Boolean) value);
+        return appendStatus(new StringBuilder(96)).toString();
+    }
+
+    public synchronized StringBuilder appendStatus(StringBuilder sb) {
+        return sb.append("SecurityCamera: ").append(name)
+                .append(" | ").append(isOn ? "ON" : "OFF")
+                .append(" | Recording: ").append(isRecording ? "YES" : "NO")
+                .append(" | Resolution: ").append(resolution)
+                .append(" | NightVision: ").append(nightVision ? "ON" : "OFF");
+    }
+
+    public synchronized void control(String command, Object value) {
+        if (command == null) {
+            return;
+        }
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null || !supports(operation)) {
+            EventLog.warn(this, "Unknown command: {}", command);
+            return;
+        }
+        try {
+            apply(CommandHandle.bind(this, operation, value));
+        } catch (InvalidOperationException e) {
+            EventLog.warn(this, "rejected command", e.getMessage());
+        }
+    }
+
+    public String[] getAvailableCommands() {
+        return new String[]{"record", "resolution", "nightvision"};
+    }
+
+    public boolean supports(DeviceOperation operation) {
+        return OPERATIONS.contains(operation);
+    }
+
+    public synchronized void apply(CommandHandle command) {
+        switch (command.getOperation()) {
+            case RECORD:
+                setRecording(command.getBooleanValue());
                 break;
-            case "resolution":
-                setResolution((String) value);
+            case RESOLUTION:
+                setResolution(command.getTextValue());
                 break;
-            case "nightvision":
-                setNightVision((Boolean) value);
+            case NIGHT_VISION:
+                setNightVision(command.getBooleanValue());
                 break;
             default:
-                System.out.println("Unknown command: " + command);
+                EventLog.warn(this, "Unknown command: {}", command.getOperation().getCommand());
         }
     }
 
-    public String[] getAvailableCommands() {
-        return new String[]{"record", "resolution", "nightvision"};
+    public boolean isInState(CommandHandle command) {
+        switch (command.getOperation()) {
+            case RECORD:
+                return isRecording == command.getBooleanValue();
+            case RESOLUTION:
+                return Objects.equals(resolution, command.getTextValue());
+            case NIGHT_VISION:
+                return nightVision == command.getBooleanValue();
+            default:
+                return false;
+        }
     }
 
     public double getEnergyConsumption() {
@@ -65,22 +117,34 @@ public class SecurityCamera extends SmartDevice implements Controllable, EnergyC
     }
 
     public double getDailyUsage() {
-        return getEnergyConsumption() * 24.0 / 1000.0;
+        double measured = measuredDailyUsage();
+        // Outside a home there is no history yet, so fall back to a typical duty cycle
+        return measured >= 0.0 ? measured : getEnergyConsumption() * 24.0 / 1000.0;
     }
 
-    public void setRecording(boolean recording) {
+    public synchronized void setRecording(boolean recording) {
         isRecording = recording;
-        System.out.println(name + (recording ? " started recording" : " stopped recording"));
+        energyChanged();
+        stateChanged(StateChange.Type.RECORDING, recording);
+        EventLog.info(this, recording ? "started recording" : "stopped recording");
     }
 
-    public void setResolution(String res) {
+    public synchronized void setResolution(String res) {
         resolution = res;
-        System.out.println(name + " resolution set to " + res);
+        stateChanged(StateChange.Type.RESOLUTION, res);
+        EventLog.info(this, "resolution set to", res);
     }
 
-    public void setNightVision(boolean enabled) {
+    public synchronized void setNightVision(boolean enabled) {
         nightVision = enabled;
-        System.out.println(name + " night vision " + (enabled ? "enabled" : "disabled"));
+        stateChanged(StateChange.Type.NIGHT_VISION, enabled);
+        EventLog.info(this, enabled ? "night vision enabled" : "night vision disabled");
+    }
+
+    synchronized void restore(boolean recording, String resolution, boolean nightVision) {
+        this.isRecording = recording;
+        this.resolution = resolution;
+        this.nightVision = nightVision;
     }
 
     public boolean isRecording() {
@@ -1,12 +1,22 @@
 package smarthome;
 
+// Concurrency model: every mutation of a device runs under that device's own
+// monitor, so commands to one device are serialized while different devices can
+// be driven in parallel. State fields are volatile so plain getters always see
+// the latest committed value without locking.
 public abstract class SmartDevice {
 
     protected String id;
     protected String name;
     protected String location;
-    protected boolean isOn;
-    protected boolean isOnline;
+    protected volatile boolean isOn;
+    protected volatile boolean isOnline;
+
+    // Energy bookkeeping, guarded by this device's monitor: the wattage last pushed
+    // to the room and home totals, in milliwatts so the running sums never drift
+    private Room room;
+    private Home home;
+    private long reportedMilliwatts;
 
     public SmartDevice(String id, String name, String location) {
         this.id = id;
@@ -22,6 +32,11 @@ public abstract class SmartDevice {
 
     public abstract String getStatus();
 
+    // Appends the same text getStatus() returns, without building intermediate strings
+    public StringBuilder appendStatus(StringBuilder sb) {
+        return sb.append(getStatus());
+    }
+
     public String getId() {
         return id;
     }
@@ -42,8 +57,127 @@ public abstract class SmartDevice {
         return isOnline;
     }
 
-    public void setOnline(boolean online) {
+    public synchronized void setOnline(boolean online) {
         this.isOnline = online;
+        stateChanged(StateChange.Type.ONLINE, online);
+    }
+
+    // Snapshot restore: sets state without logging or running device logic. The
+    // restore methods are only used before the device is attached to a room, so
+    // there are no energy totals to update yet.
+    synchronized void restorePower(boolean on, boolean online) {
+        this.isOn = on;
+        this.isOnline = online;
+    }
+
+    // Subclasses call this after changing anything getEnergyConsumption() depends on
+    protected synchronized void energyChanged() {
+        long milliwatts = currentMilliwatts();
+        long delta = milliwatts - reportedMilliwatts;
+        if (delta == 0L) {
+            return;
+        }
+        reportedMilliwatts = milliwatts;
+        if (room != null) {
+            room.addEnergy(delta);
+        }
+        if (home != null) {
+            home.addEnergy(delta);
+            home.recordEnergy(this, milliwatts);
+        }
+    }
+
+    // Subclasses call these after committing a change, still holding the monitor, so
+    // the changes of one device reach the bus in the order they were made
+    protected synchronized void stateChanged(StateChange.Type type, double value) {
+        publish(type, value, null);
+    }
+
+    protected void stateChanged(StateChange.Type type, boolean value) {
+        stateChanged(type, value ? 1.0 : 0.0);
+    }
+
+    protected synchronized void stateChanged(StateChange.Type type, String value) {
+        publish(type, 0.0, value);
+    }
+
+    private void publish(StateChange.Type type, double value, String text) {
+        if (home == null) {
+            return;
+        }
+        StateChangeBus bus = home.getStateChangeBus();
+        if (bus.wants(type)) {
+            bus.publish(new StateChange(type, this, room != null ? room.getId() : location,
+                    System.currentTimeMillis(), value, text));
+        }
+    }
+
+    synchronized Home getHome() {
+        return home;
+    }
+
+    // Moves this device's contribution from its old room and home to the new ones
+    synchronized void attachTo(Room newRoom) {
+        Home newHome = newRoom == null ? null : newRoom.getHome();
+        if (room != null) {
+            room.addEnergy(-reportedMilliwatts);
+        }
+        if (home != null) {
+            home.addEnergy(-reportedMilliwatts);
+            if (home != newHome) {
+                home.recordEnergy(this, 0L);
+            }
+        }
+        reportedMilliwatts = currentMilliwatts();
+        room = newRoom;
+        home = newHome;
+        if (room != null) {
+            room.addEnergy(reportedMilliwatts);
+        }
+        if (home != null) {
+            home.addEnergy(reportedMilliwatts);
+            home.recordEnergy(this, reportedMilliwatts);
+        }
+    }
+
+    synchronized void attachTo(Home newHome) {
+        if (home == newHome) {
+            return;
+        }
+        if (home != null) {
+            home.addEnergy(-reportedMilliwatts);
+            home.recordEnergy(this, 0L);
+        }
+        home = newHome;
+        if (home != null) {
+            home.addEnergy(reportedMilliwatts);
+            home.recordEnergy(this, reportedMilliwatts);
+        }
+    }
+
+    // kWh actually used over the last 24 hours according to the home's energy history,
+    // or -1 when the device does not belong to a home yet
+    protected double measuredDailyUsage() {
+        Home h;
+        synchronized (this) {
+            h = home;
+        }
+        if (h == null) {
+            return -1.0;
+        }
+        long now = System.currentTimeMillis();
+        return h.getEnergyHistory().getEnergyKWh(id, now - 86_400_000L, now);
+    }
+
+    Room getRoom() {
+        return room;
+    }
+
+    private long currentMilliwatts() {
+        if (this instanceof EnergyConsumer) {
+            return Math.round(((EnergyConsumer) this).getEnergyConsumption() * 1000.0);
+        }
+        return 0L;
     }
 
     @Override
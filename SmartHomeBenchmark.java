@@ -0,0 +1,381 @@
+package smarthome;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Standalone micro-benchmarks for the controller hot paths.
+// Run with: java smarthome.SmartHomeBenchmark
+// "java smarthome.SmartHomeBenchmark check" only runs the energy total checks, without
+// timing anything, and exits non-zero when a running total drifts from a full scan.
+// The snapshot benchmark holds two homes of -Dsnapshot.devices devices (default 1M)
+// in memory at once; give it -Xms3g -Xmx3g or lower the device count.
+public class SmartHomeBenchmark {
+
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+
+    private static final int RULES_PER_SENSOR = 10;
+    private static final int SNAPSHOT_ROUNDS = 5;
+    private static final int JOURNAL_DEVICES = 1_000;
+    private static final int ENERGY_MUTATIONS = 100_000;
+    private static final int ENERGY_THREADS = 4;
+    // Totals are kept in whole milliwatts, so each device may round by up to 0.5 mW
+    private static final double ENERGY_TOLERANCE_PER_DEVICE = 0.0005;
+    private static final String[] MODES = {"auto", "heat", "cool", "off"};
+
+    public static void main(String[] args) throws IOException {
+        PrintStream console = System.out;
+        // Measure the model itself, not the event log
+        EventLog.setSilent(true);
+        if (args.length > 0 && "check".equals(args[0])) {
+            for (int deviceCount : new int[]{10, 1_000, 100_000}) {
+                verifyEnergyTotals(console, syntheticHome(deviceCount), deviceCount);
+            }
+            return;
+        }
+        console.println("=== handleEvent (indexed rule dispatch) ===");
+        for (int ruleCount : new int[]{10, 1_000, 100_000}) {
+            benchmarkHandleEvent(console, ruleCount);
+        }
+        console.println("=== getTotalEnergyConsumption (running total vs full scan) ===");
+        for (int deviceCount : new int[]{10, 1_000, 100_000}) {
+            benchmarkEnergy(console, deviceCount);
+        }
+        console.println("=== CommandJournal (sustained executeOnDevice, group commit) ===");
+        for (int threads : new int[]{0, 1, 4, 16, 64}) {
+            benchmarkJournal(console, threads);
+        }
+        console.println("=== HomeSnapshot save/load ===");
+        benchmarkSnapshot(console, Integer.getInteger("snapshot.devices", 1_000_000));
+    }
+
+    private static void benchmarkHandleEvent(PrintStream console, int ruleCount) {
+        int sensorCount = Math.max(1, ruleCount / RULES_PER_SENSOR);
+        Home home = new Home("Bench", "Benchmark Street");
+        Room room = new Room("room1", "Bench Room");
+        home.addRoom(room);
+        for (int i = 0; i < sensorCount; i++) {
+            room.addDevice(new MotionSensor("s" + i, "Sensor " + i, "room1"));
+            room.addDevice(new Light("l" + i, "Light " + i, "room1"));
+        }
+        DeviceController controller = new DeviceController(home);
+        for (int i = 0; i < ruleCount; i++) {
+            int sensor = i % sensorCount;
+            controller.addRule(new AutomationRule("r" + i, "Rule " + i,
+                    "s" + sensor, "motion_detected", "l" + sensor, (i & 1) == 0 ? "turn_on" : "turn_off"));
+        }
+
+        final String[] sensorIds = new String[sensorCount];
+        for (int i = 0; i < sensorCount; i++) {
+            sensorIds[i] = "s" + i;
+        }
+
+        long events = run(new Operation() {
+            private int next;
+
+            public void run() {
+                controller.handleEvent(sensorIds[next], "motion_detected");
+                next = next + 1 == sensorIds.length ? 0 : next + 1;
+            }
+        });
+        report(console, ruleCount + " rules", events);
+    }
+
+    private static void benchmarkEnergy(PrintStream console, int deviceCount) {
+        final Home home = syntheticHome(deviceCount);
+        verifyEnergyTotals(console, home, deviceCount);
+
+        final double[] sink = new double[1];
+        long reads = run(new Operation() {
+            public void run() {
+                sink[0] += home.getTotalEnergyConsumption();
+            }
+        });
+        report(console, deviceCount + " devices, running", reads);
+        long scans = run(new Operation() {
+            public void run() {
+                sink[0] += home.recomputeTotalEnergyConsumption();
+            }
+        });
+        report(console, deviceCount + " devices, scan", scans);
+    }
+
+    // Churns the inputs, first on one thread and then on several at once, and fails if
+    // the running totals drift from a full recomputation
+    private static void verifyEnergyTotals(PrintStream console, final Home home, int deviceCount) {
+        final SmartDevice[] devices = home.getAllDevices().toArray(new SmartDevice[0]);
+        mutateEnergyInputs(home, devices, new Random(42L), ENERGY_MUTATIONS);
+        checkEnergyTotals(console, home, deviceCount + " devices");
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < ENERGY_THREADS; t++) {
+            final long seed = 43L + t;
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    mutateEnergyInputs(home, devices, new Random(seed), ENERGY_MUTATIONS / ENERGY_THREADS);
+                }
+            }, "energy-writer-" + t);
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while mutating devices", e);
+            }
+        }
+        checkEnergyTotals(console, home, deviceCount + " devices, concurrent");
+    }
+
+    // Every input getEnergyConsumption() depends on: power, brightness, recording, target
+    // and current temperature, mode, plus offline devices refusing to turn on, and
+    // devices leaving their room and coming back (a removed device keeps being mutated)
+    private static void mutateEnergyInputs(Home home, SmartDevice[] devices, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            SmartDevice device = devices[random.nextInt(devices.length)];
+            int choice = random.nextInt(9);
+            if (choice == 8) {
+                Room room = home.getRoom(device.getLocation());
+                if (room.getDevice(device.getId()) == device) {
+                    room.removeDevice(device.getId());
+                } else {
+                    room.addDevice(device);
+                }
+            } else if (choice == 0) {
+                device.setOnline(!device.isOnline());
+            } else if (choice == 1) {
+                device.turnOn();
+            } else if (choice == 2) {
+                device.turnOff();
+            } else if (device instanceof Light) {
+                ((Light) device).setBrightness(random.nextInt(101));
+            } else if (device instanceof Thermostat) {
+                Thermostat thermostat = (Thermostat) device;
+                if (choice == 3) {
+                    thermostat.setTargetTemperature(15.0 + random.nextInt(150) / 10.0);
+                } else if (choice == 4) {
+                    thermostat.setMode(MODES[random.nextInt(MODES.length)]);
+                } else {
+                    thermostat.setCurrentTemperature(15.0 + random.nextInt(150) / 10.0);
+                }
+            } else if (device instanceof SecurityCamera) {
+                ((SecurityCamera) device).setRecording(random.nextBoolean());
+            } else if (device instanceof SmartTV) {
+                ((SmartTV) device).setVolume(random.nextInt(101));
+            }
+        }
+    }
+
+    private static void checkEnergyTotals(PrintStream console, Home home, String label) {
+        double incremental = home.getTotalEnergyConsumption();
+        double recomputed = home.recomputeTotalEnergyConsumption();
+        double drift = Math.abs(incremental - recomputed);
+        console.printf("  %-24s running=%.3f W, recomputed=%.3f W, diff=%.6f W%n",
+                label, incremental, recomputed, drift);
+        double tolerance = home.getDeviceCount() * ENERGY_TOLERANCE_PER_DEVICE + 1e-9;
+        if (drift > tolerance) {
+            throw new IllegalStateException("Home energy total drifted by " + drift
+                    + " W (tolerance " + tolerance + " W) after " + label);
+        }
+        for (Room room : home.getAllRooms()) {
+            double roomDrift = Math.abs(room.getEnergyConsumption() - room.recomputeEnergyConsumption());
+            double roomTolerance = room.getAllDevices().size() * ENERGY_TOLERANCE_PER_DEVICE + 1e-9;
+            if (roomDrift > roomTolerance) {
+                throw new IllegalStateException("Energy total of " + room.getName() + " drifted by "
+                        + roomDrift + " W after " + label);
+            }
+        }
+    }
+
+    // threads == 0 is the single-threaded baseline without a journal
+    private static void benchmarkJournal(PrintStream console, int threads) throws IOException {
+        final DeviceController controller = new DeviceController(syntheticHome(JOURNAL_DEVICES));
+        Path file = Files.createTempFile("casasecure", ".journal");
+        CommandJournal journal = null;
+        try {
+            if (threads == 0) {
+                long commands = run(new Operation() {
+                    private int next;
+
+                    public void run() {
+                        issueCommand(controller, next++);
+                    }
+                });
+                report(console, "no journal, 1 thread", commands);
+                return;
+            }
+            journal = CommandJournal.open(file, 0L);
+            controller.setJournal(journal);
+            final AtomicLong commands = new AtomicLong();
+            final AtomicBoolean measuring = new AtomicBoolean();
+            final long deadline = System.nanoTime() + WARMUP_NANOS + MEASURE_NANOS;
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                final int stride = threads;
+                workers[t] = new Thread(new Runnable() {
+                    public void run() {
+                        // Each thread drives its own slice of the devices
+                        for (int i = first; System.nanoTime() < deadline; i += stride) {
+                            issueCommand(controller, i);
+                            if (measuring.get()) {
+                                commands.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            sleepNanos(WARMUP_NANOS);
+            long syncsBefore = journal.getSyncCount();
+            long recordsBefore = journal.getRecordsSynced();
+            measuring.set(true);
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            long syncs = journal.getSyncCount() - syncsBefore;
+            long records = journal.getRecordsSynced() - recordsBefore;
+            report(console, "journal, " + threads + " thread" + (threads == 1 ? "" : "s"), commands.get());
+            console.printf("  %-24s %,14.1f records/fsync%n", "", syncs == 0 ? 0.0 : (double) records / syncs);
+        } finally {
+            controller.setJournal(null);
+            if (journal != null) {
+                journal.close();
+            }
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Alternates the power of device d(i % JOURNAL_DEVICES), so every command changes state
+    private static void issueCommand(DeviceController controller, int i) {
+        int index = (i & Integer.MAX_VALUE) % JOURNAL_DEVICES;
+        try {
+            controller.executeOnDevice("d" + index, ((i / JOURNAL_DEVICES) & 1) == 0 ? "turn_off" : "turn_on", null);
+        } catch (DeviceNotFoundException | DeviceOfflineException | InvalidOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1_000_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void benchmarkSnapshot(PrintStream console, int deviceCount) throws IOException {
+        DeviceController controller = new DeviceController(syntheticHome(deviceCount));
+        for (int i = 0; i < 100; i++) {
+            controller.addRule(new AutomationRule("r" + i, "Rule " + i,
+                    "d" + (i * 6 + 4), "motion_detected", "d" + (i * 6), "turn_on"));
+        }
+        Path file = Files.createTempFile("casasecure", ".snapshot");
+        try {
+            long bestSave = Long.MAX_VALUE;
+            long bestLoad = Long.MAX_VALUE;
+            DeviceController loaded = null;
+            for (int round = 0; round < SNAPSHOT_ROUNDS; round++) {
+                long start = System.nanoTime();
+                HomeSnapshot.save(controller, file);
+                bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+                loaded = null; // let the previous copy go before building the next one
+                start = System.nanoTime();
+                loaded = HomeSnapshot.load(file);
+                bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+            }
+            long bytes = Files.size(file);
+            console.printf("  %-24s %,d bytes (%.1f bytes/device)%n",
+                    deviceCount + " devices", bytes, (double) bytes / deviceCount);
+            console.printf("  %-24s %,10.1f ms (best of %d)%n", "save", bestSave / 1e6, SNAPSHOT_ROUNDS);
+            console.printf("  %-24s %,10.1f ms (best of %d)%n", "load", bestLoad / 1e6, SNAPSHOT_ROUNDS);
+            console.printf("  %-24s devices=%d, energy=%.3f W (original %.3f W)%n", "loaded check",
+                    loaded.getHome().getDeviceCount(), loaded.getHome().getTotalEnergyConsumption(),
+                    controller.getHome().getTotalEnergyConsumption());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // A home with deviceCount devices spread over rooms of 50, cycling through every device type
+    static Home syntheticHome(int deviceCount) {
+        Home home = new Home("Bench", "Benchmark Street");
+        Room room = null;
+        for (int i = 0; i < deviceCount; i++) {
+            if (i % 50 == 0) {
+                room = new Room("room" + (i / 50), "Room " + (i / 50));
+                home.addRoom(room);
+            }
+            String id = "d" + i;
+            String roomId = room.getId();
+            SmartDevice device;
+            switch (i % 6) {
+                case 0:
+                    device = new Light(id, "Light " + i, roomId);
+                    break;
+                case 1:
+                    device = new Thermostat(id, "Thermostat " + i, roomId);
+                    break;
+                case 2:
+                    device = new SmartTV(id, "TV " + i, roomId);
+                    break;
+                case 3:
+                    device = new SecurityCamera(id, "Camera " + i, roomId);
+                    break;
+                case 4:
+                    device = new MotionSensor(id, "Sensor " + i, roomId);
+                    break;
+                default:
+                    device = new SmartLock(id, "Lock " + i, roomId);
+                    break;
+            }
+            // Switch on before attaching, so the energy history starts with one sample per device
+            device.turnOn();
+            room.addDevice(device);
+        }
+        return home;
+    }
+
+    interface Operation {
+        void run();
+    }
+
+    // Runs the operation for the warm-up period, then returns how many calls fit in the measurement window
+    static long run(Operation op) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 100; i++) {
+                op.run();
+            }
+        }
+        long count = 0L;
+        long start = System.nanoTime();
+        end = start + MEASURE_NANOS;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 100; i++) {
+                op.run();
+            }
+            count += 100;
+        }
+        return count;
+    }
+
+    static void report(PrintStream console, String label, long operations) {
+        double perSecond = operations / (MEASURE_NANOS / 1_000_000_000.0);
+        console.printf("  %-24s %,14.0f ops/s%n", label, perSecond);
+    }
+}
@@ -1,5 +1,13 @@
 package smarthome;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.time.LocalTime;
 
@@ -8,8 +16,105 @@ public class SmartHomeSimulator {
     private static int deviceCounter = 5;
     private static int roomCounter = 3;
     private static int ruleCounter = 2;
+    private static final List<Scene> scenes = new ArrayList<Scene>();
+    private static Path snapshotPath;
+    private static CommandJournal journal;
+    // Room temperatures follow the thermostats; each real second is a simulated minute
+    private static final ThermalSimulation thermal = new ThermalSimulation();
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--load")) {
+            runLoad(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        snapshotPath = Paths.get(args.length > 0 ? args[0] : "casasecure.snapshot");
+        Path journalPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".journal");
+        DeviceController controller = null;
+        long snapshotSequence = 0L;
+        if (Files.exists(snapshotPath)) {
+            try {
+                controller = HomeSnapshot.load(snapshotPath);
+                snapshotSequence = HomeSnapshot.readJournalSequence(snapshotPath);
+                updateCounters(controller);
+                System.out.println("✓ Restored " + controller.getHome().getDeviceCount()
+                        + " devices from " + snapshotPath);
+            } catch (IOException e) {
+                System.out.println("✗ Could not load " + snapshotPath + ": " + e.getMessage());
+            }
+        }
+        if (controller == null) {
+            controller = createDefaultHome();
+        }
+
+        // Commands since the last snapshot are in the journal; replay them, then keep journaling
+        try {
+            journal = CommandJournal.open(journalPath, snapshotSequence);
+            int replayed = journal.replay(controller);
+            controller.setJournal(journal);
+            if (replayed > 0) {
+                EventLog.flush();
+                System.out.println("✓ Replayed " + replayed + " commands from " + journalPath);
+            }
+        } catch (IOException e) {
+            System.out.println("✗ Command journal unavailable: " + e.getMessage());
+        }
+
+        // Example scene
+        scenes.add(new Scene("Movie night")
+                .turnOn("d1")
+                .set("d1", "brightness", 20)
+                .turnOn("d2")
+                .set("d2", "input", "HDMI2")
+                .turnOn("d3")
+                .set("d3", "temperature", 21.0));
+
+        controller.getScheduler().start();
+        thermal.addAll(controller.getHome());
+        thermal.start(1000L, 60.0);
+        runMenu(controller);
+        thermal.stop();
+        controller.getScheduler().shutdown();
+
+        saveHome(controller);
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("✗ Could not close the command journal: " + e.getMessage());
+            }
+        }
+        EventLog.flush();
+        System.out.println("✓ Home saved to " + snapshotPath);
+    }
+
+    // Headless mode: a synthetic home under generated load, no snapshot or journal
+    private static void runLoad(String[] settings) {
+        EventLog.setSilent(true);
+        try {
+            new LoadGenerator(LoadGenerator.Settings.parse(settings)).run(System.out);
+        } catch (IllegalArgumentException e) {
+            System.out.println("✗ " + e.getMessage());
+            System.out.println("Usage: --load [rooms=N] [devices=N] [rules=N] [rate=OPS_PER_SEC] "
+                    + "[duration=SECONDS] [motion=SHARE] [threads=N] [seed=N]");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Rooms, devices and rules are only in the snapshot, so it is rewritten whenever
+    // they change; the journal then only has to carry commands issued since
+    private static void saveHome(DeviceController controller) {
+        try {
+            long sequence = HomeSnapshot.save(controller, snapshotPath);
+            if (journal != null) {
+                journal.checkpoint(sequence);
+            }
+        } catch (IOException e) {
+            System.out.println("✗ Could not save " + snapshotPath + ": " + e.getMessage());
+        }
+    }
+
+    private static DeviceController createDefaultHome() {
         Home home = new Home("CasaSecure", "Rue Mohamed 5");
         DeviceController controller = new DeviceController(home);
 
@@ -40,8 +145,31 @@ public class SmartHomeSimulator {
                 "turn_on"
         );
         controller.addRule(rule);
+        return controller;
+    }
 
-        runMenu(controller);
+    // Continue the "d", "room" and "r" numbering after the highest id in a restored home
+    private static void updateCounters(DeviceController controller) {
+        for (Room room : controller.getHome().getAllRooms()) {
+            roomCounter = Math.max(roomCounter, nextNumber(room.getId(), "room"));
+        }
+        for (SmartDevice device : controller.getHome().getAllDevices()) {
+            deviceCounter = Math.max(deviceCounter, nextNumber(device.getId(), "d"));
+        }
+        for (AutomationRule rule : controller.getRules()) {
+            ruleCounter = Math.max(ruleCounter, nextNumber(rule.getId(), "r"));
+        }
+    }
+
+    private static int nextNumber(String id, String prefix) {
+        if (id == null || !id.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(id.substring(prefix.length())) + 1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     private static void runMenu(DeviceController controller) {
@@ -49,6 +177,7 @@ public class SmartHomeSimulator {
         boolean running = true;
 
         while (running) {
+            EventLog.flush();
             System.out.println("\n==== SMART HOME MENU ====");
             System.out.println("1. Show home status");
             System.out.println("2. List all devices");
@@ -61,6 +190,9 @@ public class SmartHomeSimulator {
             System.out.println("9. Show automation rules");
             System.out.println("10. Add automation rule");
             System.out.println("11. Show energy consumption");
+            System.out.println("12. Apply scene");
+            System.out.println("13. Export device status");
+            System.out.println("14. View metrics");
             System.out.println("0. Exit");
             System.out.print("Choose option: ");
 
@@ -118,6 +250,18 @@ public class SmartHomeSimulator {
                     case "11":
                         showEnergyConsumption(controller);
                         break;
+
+                    case "12":
+                        applyScene(controller, scanner);
+                        break;
+
+                    case "13":
+                        exportStatus(controller, scanner);
+                        break;
+
+                    case "14":
+                        showMetrics(controller);
+                        break;
                         
                     case "0":
                         running = false;
@@ -138,6 +282,7 @@ public class SmartHomeSimulator {
         }
 
         scanner.close();
+        EventLog.flush();
         System.out.println("Exiting Smart Home Simulator.");
     }
 
@@ -156,6 +301,8 @@ public class SmartHomeSimulator {
         String roomId = "room" + roomCounter++;
         Room newRoom = new Room(roomId, roomName);
         controller.getHome().addRoom(newRoom);
+        saveHome(controller);
+        EventLog.flush();
         System.out.println("✓ Room '" + roomName + "' created with ID: " + roomId);
         
         // Ask if user wants to add devices
@@ -288,6 +435,11 @@ public class SmartHomeSimulator {
         }
         
         room.addDevice(device);
+        if (device instanceof Thermostat) {
+            thermal.add((Thermostat) device);
+        }
+        saveHome(controller);
+        EventLog.flush();
         System.out.println("✓ Device '" + deviceName + "' added to " + room.getName() + " [ID: " + deviceId + "]");
     }
 
@@ -346,8 +498,13 @@ public class SmartHomeSimulator {
             }
             
             MotionSensor sensor = (MotionSensor) device;
+            if (!sensor.isOn()) {
+                System.out.println("✗ Sensor is inactive, turn it on first!");
+                return;
+            }
+            // The controller is subscribed to motion changes and fires the matching rules
             sensor.detectMotion();
-            controller.handleEvent(sensor.getId(), "motion_detected");
+            controller.getHome().getStateChangeBus().flush();
             
         } catch (DeviceNotFoundException e) {
             System.out.println("✗ Error: " + e.getMessage());
@@ -381,6 +538,10 @@ public class SmartHomeSimulator {
         }
         
         // Try as ID or name (case-insensitive)
+        SmartDevice byId = controller.getHome().findDevice(input);
+        if (byId != null) {
+            return byId;
+        }
         return controller.findDeviceByName(input);
     }
 
@@ -399,7 +560,29 @@ public class SmartHomeSimulator {
             
             System.out.print("Enter action (turn_on/turn_off): ");
             String action = scanner.nextLine().trim();
-            
+
+            System.out.println("Enter a condition to trigger on, e.g.");
+            System.out.println("  t1.current_temperature > 26 and lock1.locked == false and time between 22:00 and 06:00");
+            System.out.print("or press Enter for a time-based rule: ");
+            String conditionText = scanner.nextLine().trim();
+            if (!conditionText.isEmpty()) {
+                RuleCondition condition = RuleCondition.parse(conditionText);
+                AutomationRule rule = new AutomationRule(
+                    "r" + ruleCounter++,
+                    ruleName,
+                    condition,
+                    actionDevice.getId(),
+                    action
+                );
+                controller.addRule(rule);
+                saveHome(controller);
+                EventLog.flush();
+                System.out.println("✓ Automation rule created successfully!");
+                System.out.println("Rule: " + ruleName + " - " + action + " " + actionDevice.getName() +
+                                 " when " + condition);
+                return;
+            }
+
             System.out.print("Enter time (HH:MM format, e.g., 18:30): ");
             String time = scanner.nextLine().trim();
             
@@ -438,6 +621,8 @@ public class SmartHomeSimulator {
             );
             
             controller.addRule(rule);
+            saveHome(controller);
+            EventLog.flush();
             System.out.println("✓ Automation rule created successfully!");
             System.out.println("Rule: " + ruleName + " - " + action + " " + actionDevice.getName() + 
                              " at " + time + " on " + days);
@@ -496,6 +681,62 @@ public class SmartHomeSimulator {
         return days.toString();
     }
 
+    private static void showMetrics(DeviceController controller) {
+        EventLog.flush();
+        System.out.println("\n--- Metrics ---");
+        controller.getMetrics().snapshot().print(System.out);
+    }
+
+    private static void exportStatus(DeviceController controller, Scanner scanner) {
+        System.out.print("Enter file name (.jsonl for JSON lines, anything else for binary): ");
+        String fileName = scanner.nextLine().trim();
+        if (fileName.isEmpty()) {
+            System.out.println("✗ No file name given.");
+            return;
+        }
+        try (OutputStream out = Files.newOutputStream(Paths.get(fileName))) {
+            long count = fileName.endsWith(".jsonl")
+                    ? StatusExport.writeJsonLines(controller.getHome(), out)
+                    : StatusExport.writeBinary(controller.getHome(), out);
+            System.out.println("✓ Exported " + count + " devices to " + fileName);
+        } catch (IOException e) {
+            System.out.println("✗ Export failed: " + e.getMessage());
+        }
+    }
+
+    private static void applyScene(DeviceController controller, Scanner scanner)
+            throws DeviceNotFoundException, InvalidOperationException {
+
+        System.out.println("\n--- Scenes ---");
+        for (int i = 0; i < scenes.size(); i++) {
+            System.out.println((i + 1) + ". " + scenes.get(i).getName());
+        }
+        System.out.print("Choose scene: ");
+        String input = scanner.nextLine().trim();
+
+        Scene scene = null;
+        try {
+            int index = Integer.parseInt(input) - 1;
+            if (index >= 0 && index < scenes.size()) {
+                scene = scenes.get(index);
+            }
+        } catch (NumberFormatException e) {
+            for (Scene s : scenes) {
+                if (s.getName().equalsIgnoreCase(input)) {
+                    scene = s;
+                }
+            }
+        }
+        if (scene == null) {
+            System.out.println("✗ Scene '" + input + "' not found!");
+            return;
+        }
+
+        BulkResult result = scene.compile(controller).apply();
+        EventLog.flush();
+        System.out.println("✓ " + scene.getName() + ": " + result);
+    }
+
     private static void showEnergyConsumption(DeviceController controller) {
         System.out.println("\n--- Energy Consumption Report ---");
         double total = controller.getHome().getTotalEnergyConsumption();
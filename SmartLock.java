@@ -1,90 +1,231 @@
 package smarthome;
 
-import java.util.ArrayList;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 public class SmartLock extends SmartDevice implements Controllable {
 
-    private boolean isLocked = true;
-    private String accessCode = "1234";
-    private final List<String> accessLog = new ArrayList<String>();
+    private static final Set<DeviceOperation> OPERATIONS =
+            Collections.unmodifiableSet(EnumSet.of(
+                    DeviceOperation.LOCK,
+                    DeviceOperation.UNLOCK,
+                    DeviceOperation.SET_CODE));
+
+    // The access code itself is never kept: only a random salt and the SHA-256 of salt
+    // and code, which is what snapshots and the command journal persist as well
+    static final int SALT_BYTES = 16;
+    static final int DIGEST_BYTES = 32;
+    private static final String DEFAULT_CODE = "1234";
+    private static final SecureRandom SALTS = new SecureRandom();
+    private static final byte[] DEFAULT_SALT = newSalt();
+    private static final byte[] DEFAULT_DIGEST = digest(DEFAULT_SALT, DEFAULT_CODE);
+
+    private volatile boolean isLocked = true;
+    private volatile byte[] codeSalt = DEFAULT_SALT;
+    private volatile byte[] codeDigest = DEFAULT_DIGEST;
+    private final AccessLog accessLog;
 
     public SmartLock(String id, String name, String roomId) {
+        this(id, name, roomId, AccessLog.DEFAULT_CAPACITY);
+    }
+
+    // accessLogCapacity caps how many access events are retained
+    public SmartLock(String id, String name, String roomId, int accessLogCapacity) {
         super(id, name, roomId);
+        this.accessLog = new AccessLog(accessLogCapacity);
     }
 
-    public void turnOn() {
+    public synchronized void turnOn() {
         isOn = true;
-        System.out.println(name + " smart lock activated");
+        stateChanged(StateChange.Type.POWER, true);
+        EventLog.info(this, "smart lock activated");
     }
 
-    public void turnOff() {
+    public synchronized void turnOff() {
         isOn = false;
-        System.out.println(name + " smart lock deactivated (manual mode)");
+        stateChanged(StateChange.Type.POWER, false);
+        EventLog.info(this, "smart lock deactivated (manual mode)");
     }
 
     public String getStatus() {
-        return String.format(
-                "SmartLock: %s | %s | %s",
-                name,
-                isOn ? "ACTIVE" : "MANUAL",
-                isLocked ? "LOCKED" : "UNLOCKED"
-        );
-    }
-
-    public void control(String command, Object value) {
-        if (command == null) return;
-        switch (command.toLowerCase()) {
-            case "lock":
+        return appendStatus(new StringBuilder(96)).toString();
+    }
+
+    public synchronized StringBuilder appendStatus(StringBuilder sb) {
+        return sb.append("SmartLock: ").append(name)
+                .append(" | ").append(isOn ? "ACTIVE" : "MANUAL")
+                .append(" | ").append(isLocked ? "LOCKED" : "UNLOCKED");
+    }
+
+    public synchronized void control(String command, Object value) {
+        if (command == null) {
+            return;
+        }
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null || !supports(operation)) {
+            EventLog.warn(this, "Unknown command: {}", command);
+            return;
+        }
+        try {
+            apply(CommandHandle.bind(this, operation, value));
+        } catch (InvalidOperationException e) {
+            EventLog.warn(this, "rejected command", e.getMessage());
+        }
+    }
+
+    public String[] getAvailableCommands() {
+        return new String[]{"lock", "unlock", "setcode"};
+    }
+
+    public boolean supports(DeviceOperation operation) {
+        return OPERATIONS.contains(operation);
+    }
+
+    public synchronized void apply(CommandHandle command) {
+        switch (command.getOperation()) {
+            case LOCK:
                 lock();
                 break;
-            case "unlock":
-                unlock((String) value);
+            case UNLOCK:
+                unlock(command.getTextValue());
                 break;
-            case "setcode":
-                setAccessCode((String) value);
+            case SET_CODE:
+                setAccessCode(command.getTextValue());
                 break;
             default:
-                System.out.println("Unknown command: " + command);
+                EventLog.warn(this, "Unknown command: {}", command.getOperation().getCommand());
         }
     }
 
-    public String[] getAvailableCommands() {
-        return new String[]{"lock", "unlock", "setcode"};
+    public boolean isInState(CommandHandle command) {
+        switch (command.getOperation()) {
+            case LOCK:
+                return isLocked;
+            case UNLOCK:
+                return !isLocked;
+            case SET_CODE:
+                return matchesCode(command.getTextValue());
+            default:
+                return false;
+        }
     }
 
-    public void lock() {
+    public synchronized void lock() {
         isLocked = true;
-        logAccess("LOCKED");
-        System.out.println(name + " is now LOCKED");
+        accessLog.record(AccessLog.Event.LOCKED);
+        stateChanged(StateChange.Type.LOCKED, true);
+        EventLog.info(this, "is now LOCKED");
     }
 
-    public void unlock(String code) {
-        if (code != null && code.equals(accessCode)) {
+    public synchronized void unlock(String code) {
+        if (matchesCode(code)) {
             isLocked = false;
-            logAccess("UNLOCKED - Valid code");
-            System.out.println(name + " is now UNLOCKED");
+            accessLog.record(AccessLog.Event.UNLOCKED);
+            stateChanged(StateChange.Type.LOCKED, false);
+            EventLog.info(this, "is now UNLOCKED");
         } else {
-            logAccess("FAILED ATTEMPT - Invalid code");
-            System.out.println("Invalid access code for " + name);
+            accessLog.record(AccessLog.Event.FAILED_ATTEMPT);
+            EventLog.warn(this, "Invalid access code for {name}");
         }
     }
 
-    public void setAccessCode(String newCode) {
-        accessCode = newCode;
-        System.out.println(name + " access code updated");
+    public synchronized void setAccessCode(String newCode) {
+        byte[] salt = newSalt();
+        codeDigest = digest(salt, newCode);
+        codeSalt = salt;
+        EventLog.info(this, "access code updated");
     }
 
-    private void logAccess(String entry) {
-        accessLog.add(new Date().toString() + " - " + entry);
+    boolean matchesCode(String code) {
+        if (code == null) {
+            return false;
+        }
+        byte[] salt;
+        byte[] expected;
+        synchronized (this) {
+            salt = codeSalt;
+            expected = codeDigest;
+        }
+        return MessageDigest.isEqual(expected, digest(salt, code));
+    }
+
+    // Snapshot restore from a plain code (snapshots before version 3)
+    synchronized void restore(boolean locked, String accessCode) {
+        isLocked = locked;
+        if (accessCode != null) {
+            byte[] salt = newSalt();
+            codeDigest = digest(salt, accessCode);
+            codeSalt = salt;
+        }
+    }
+
+    // Restores persisted state directly: no log line, no access log entry
+    synchronized void restore(boolean locked, byte[] salt, byte[] digest) {
+        isLocked = locked;
+        restoreCode(salt, digest);
+    }
+
+    synchronized void restoreLocked(boolean locked) {
+        isLocked = locked;
+    }
+
+    synchronized void restoreCode(byte[] salt, byte[] digest) {
+        if (salt.length != SALT_BYTES || digest.length != DIGEST_BYTES) {
+            throw new IllegalArgumentException("Malformed access code digest for " + getId());
+        }
+        codeSalt = salt.clone();
+        codeDigest = digest.clone();
+    }
+
+    // Copies; the pair is only consistent when read under this monitor
+    synchronized byte[] getCodeSalt() {
+        return codeSalt.clone();
+    }
+
+    synchronized byte[] getCodeDigest() {
+        return codeDigest.clone();
     }
 
     public boolean isLocked() {
         return isLocked;
     }
 
+    // Retained entries as text, e.g. "Mon Mar 02 18:30:00 CET 2026 - LOCKED"
     public List<String> getAccessLog() {
+        return accessLog.format(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    public AccessLog getAccessHistory() {
         return accessLog;
     }
+
+    public int countFailedAttemptsSince(long fromMillis) {
+        return accessLog.count(AccessLog.Event.FAILED_ATTEMPT, fromMillis, Long.MAX_VALUE);
+    }
+
+    private static byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        SALTS.nextBytes(salt);
+        return salt;
+    }
+
+    // A null code gets an all-zero digest, which no code hashes to, so nothing unlocks
+    private static byte[] digest(byte[] salt, String code) {
+        if (code == null) {
+            return new byte[DIGEST_BYTES];
+        }
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(salt);
+            return sha.digest(code.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
 }
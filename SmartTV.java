@@ -1,59 +1,107 @@
 package smarthome;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
 public class SmartTV extends SmartDevice implements Controllable, EnergyConsumer {
 
-    private int volume = 30;
-    private int channel = 1;
-    private String input = "HDMI1";
+    private static final Set<DeviceOperation> OPERATIONS =
+            Collections.unmodifiableSet(EnumSet.of(
+                    DeviceOperation.VOLUME,
+                    DeviceOperation.CHANNEL,
+                    DeviceOperation.INPUT));
+
+    private volatile int volume = 30;
+    private volatile int channel = 1;
+    private volatile String input = "HDMI1";
 
     public SmartTV(String id, String name, String roomId) {
         super(id, name, roomId);
     }
 
-    public void turnOn() {
+    public synchronized void turnOn() {
         if (!isOnline) {
-            System.out.println(name + " is offline.");
+            EventLog.warn(this, "is offline.");
         } else {
             isOn = true;
-            System.out.println(name + " turned ON - Channel " + channel + " | Volume " + volume);
+            energyChanged();
+            stateChanged(StateChange.Type.POWER, true);
+            EventLog.info(this, "{name} turned ON - Channel {} | Volume {}", channel, volume);
         }
     }
 
-    public void turnOff() {
+    public synchronized void turnOff() {
         isOn = false;
-        System.out.println(name + " turned OFF");
+        energyChanged();
+        stateChanged(StateChange.Type.POWER, false);
+        EventLog.info(this, "turned OFF");
     }
 
     public String getStatus() {
-        return String.format(
-                "SmartTV: %s | %s | Volume: %d | Channel: %d | Input: %s",
-                name,
-                isOn ? "ON" : "OFF",
-                volume,
-                channel,
-                input
-        );
-    }
-
-    public void control(String command, Object value) {
-        if (command == null) return;
-        switch (command.toLowerCase()) {
-            case "volume":
-                setVolume((Integer) value);
+        return appendStatus(new StringBuilder(96)).toString();
+    }
+
+    public synchronized StringBuilder appendStatus(StringBuilder sb) {
+        return sb.append("SmartTV: ").append(name)
+                .append(" | ").append(isOn ? "ON" : "OFF")
+                .append(" | Volume: ").append(volume)
+                .append(" | Channel: ").append(channel)
+                .append(" | Input: ").append(input);
+    }
+
+    public synchronized void control(String command, Object value) {
+        if (command == null) {
+            return;
+        }
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null || !supports(operation)) {
+            EventLog.warn(this, "Unknown command: {}", command);
+            return;
+        }
+        try {
+            apply(CommandHandle.bind(this, operation, value));
+        } catch (InvalidOperationException e) {
+            EventLog.warn(this, "rejected command", e.getMessage());
+        }
+    }
+
+    public String[] getAvailableCommands() {
+        return new String[]{"volume", "channel", "input"};
+    }
+
+    public boolean supports(DeviceOperation operation) {
+        return OPERATIONS.contains(operation);
+    }
+
+    public synchronized void apply(CommandHandle command) {
+        switch (command.getOperation()) {
+            case VOLUME:
+                setVolume(command.getIntValue());
                 break;
-            case "channel":
-                setChannel((Integer) value);
+            case CHANNEL:
+                setChannel(command.getIntValue());
                 break;
-            case "input":
-                setInput((String) value);
+            case INPUT:
+                setInput(command.getTextValue());
                 break;
             default:
-                System.out.println("Unknown command: " + command);
+                EventLog.warn(this, "Unknown command: {}", command.getOperation().getCommand());
         }
     }
 
-    public String[] getAvailableCommands() {
-        return new String[]{"volume", "channel", "input"};
+    public boolean isInState(CommandHandle command) {
+        switch (command.getOperation()) {
+            case VOLUME:
+                return volume == Math.max(0, Math.min(100, command.getIntValue()));
+            case CHANNEL:
+                return channel == Math.max(1, command.getIntValue());
+            case INPUT:
+                return Objects.equals(input, command.getTextValue());
+            default:
+                return false;
+        }
     }
 
     public double getEnergyConsumption() {
@@ -61,22 +109,33 @@ public class SmartTV extends SmartDevice implements Controllable, EnergyConsumer
     }
 
     public double getDailyUsage() {
-        return getEnergyConsumption() * 6.0 / 1000.0;
+        double measured = measuredDailyUsage();
+        // Outside a home there is no history yet, so fall back to a typical duty cycle
+        return measured >= 0.0 ? measured : getEnergyConsumption() * 6.0 / 1000.0;
     }
 
-    public void setVolume(int v) {
+    public synchronized void setVolume(int v) {
         volume = Math.max(0, Math.min(100, v));
-        System.out.println(name + " volume set to " + volume);
+        stateChanged(StateChange.Type.VOLUME, volume);
+        EventLog.info(this, "volume set to", volume);
     }
 
-    public void setChannel(int c) {
+    public synchronized void setChannel(int c) {
         channel = Math.max(1, c);
-        System.out.println(name + " switched to channel " + channel);
+        stateChanged(StateChange.Type.CHANNEL, channel);
+        EventLog.info(this, "switched to channel", channel);
+    }
+
+    public synchronized void setInput(String input) {
+        this.input = input;
+        stateChanged(StateChange.Type.INPUT, input);
+        EventLog.info(this, "input changed to", input);
     }
 
-    public void setInput(String input) {
+    synchronized void restore(int volume, int channel, String input) {
+        this.volume = volume;
+        this.channel = channel;
         this.input = input;
-        System.out.println(name + " input changed to " + input);
     }
 
     public int getVolume() {
@@ -0,0 +1,88 @@
+package smarthome;
+
+// One committed change of a device attribute, as delivered by StateChangeBus.
+// Numeric and boolean values travel as a double (booleans as 1 or 0), text
+// values as a string; getType() says which one applies.
+public final class StateChange {
+
+    public enum Type {
+        POWER,
+        ONLINE,
+        BRIGHTNESS,
+        COLOR,
+        TARGET_TEMPERATURE,
+        CURRENT_TEMPERATURE,
+        MODE,
+        VOLUME,
+        CHANNEL,
+        INPUT,
+        RECORDING,
+        RESOLUTION,
+        NIGHT_VISION,
+        LOCKED,
+        MOTION,
+        SENSITIVITY;
+
+        final long bit() {
+            return 1L << ordinal();
+        }
+    }
+
+    private final Type type;
+    private final SmartDevice device;
+    private final String roomId;
+    private final long timestamp;
+    private final double value;
+    private final String textValue;
+
+    StateChange(Type type, SmartDevice device, String roomId, long timestamp, double value, String textValue) {
+        this.type = type;
+        this.device = device;
+        this.roomId = roomId;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.textValue = textValue;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public SmartDevice getDevice() {
+        return device;
+    }
+
+    public String getDeviceId() {
+        return device.getId();
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean getBooleanValue() {
+        return value != 0.0;
+    }
+
+    public int getIntValue() {
+        return (int) value;
+    }
+
+    public double getDoubleValue() {
+        return value;
+    }
+
+    // COLOR, MODE, INPUT and RESOLUTION; null for the other types
+    public String getTextValue() {
+        return textValue;
+    }
+
+    @Override
+    public String toString() {
+        return device.getName() + " " + type + " -> " + (textValue != null ? textValue : Double.toString(value));
+    }
+}
@@ -0,0 +1,263 @@
+package smarthome;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-home bus for device state changes. Devices publish while holding their own
+// monitor, which only appends to a lock-free queue; listeners run later on the
+// dispatcher, outside every device lock, so a listener may safely command other
+// devices. Changes from one device are delivered in the order they happened.
+//
+// Nothing is allocated for a change no subscriber is interested in: publishers
+// check a bitmask of the types at least one subscription asks for.
+//
+// Buses without their own executor share a small pool. A bus hands the pool at most
+// one drain task at a time, so its changes are still delivered one after another,
+// while a slow listener (or a journal sync it waits on) only holds up its own home.
+public class StateChangeBus {
+
+    public interface Listener {
+        void onStateChange(StateChange change);
+    }
+
+    // A registered listener and its filter; null fields match everything
+    public final class Subscription {
+        private final String deviceId;
+        private final String roomId;
+        private final long typeMask;
+        private final Listener listener;
+
+        private Subscription(String deviceId, String roomId, long typeMask, Listener listener) {
+            this.deviceId = deviceId;
+            this.roomId = roomId;
+            this.typeMask = typeMask;
+            this.listener = listener;
+        }
+
+        boolean matches(StateChange change) {
+            return (typeMask & change.getType().bit()) != 0L
+                    && (deviceId == null || deviceId.equals(change.getDeviceId()))
+                    && (roomId == null || roomId.equals(change.getRoomId()));
+        }
+
+        public void cancel() {
+            unsubscribe(this);
+        }
+    }
+
+    private static final long ALL_TYPES = (1L << StateChange.Type.values().length) - 1L;
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    // Changes delivered per dispatcher run before yielding to other homes' buses
+    private static final int BATCH_SIZE = 256;
+
+    private static final int DISPATCHER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // The queue holds at most one drain task per bus, so it needs no bound of its own
+    private static final ExecutorService DEFAULT_DISPATCHER = new ThreadPoolExecutor(
+            DISPATCHER_THREADS, DISPATCHER_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicLong created = new AtomicLong();
+
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "state-changes-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ConcurrentLinkedQueue<StateChange> queue = new ConcurrentLinkedQueue<StateChange>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile Executor dispatcher;
+    private final Runnable drainTask;
+    private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+    private volatile long interest;
+    private boolean suspended; // guarded by this
+    private volatile Thread draining;
+    // flush() callers wait on flushLock; drain() only takes it while someone is waiting
+    private final Object flushLock = new Object();
+    private volatile int flushWaiters;
+
+    public StateChangeBus() {
+        this(DEFAULT_DISPATCHER);
+    }
+
+    // Listeners run on the given executor, one batch at a time
+    public StateChangeBus(Executor dispatcher) {
+        this.dispatcher = dispatcher;
+        this.drainTask = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    // Moves delivery to another executor, e.g. the shard that owns the home, or back
+    // to the shared default with null. A batch already running finishes where it is.
+    void setDispatcher(Executor dispatcher) {
+        this.dispatcher = dispatcher == null ? DEFAULT_DISPATCHER : dispatcher;
+    }
+
+    public Subscription subscribe(Listener listener) {
+        return subscribe(null, null, null, listener);
+    }
+
+    // Any of deviceId, roomId and types may be null to match everything
+    public synchronized Subscription subscribe(String deviceId, String roomId, Set<StateChange.Type> types,
+                                               Listener listener) {
+        long mask = 0L;
+        if (types == null) {
+            mask = ALL_TYPES;
+        } else {
+            for (StateChange.Type type : types) {
+                mask |= type.bit();
+            }
+        }
+        Subscription subscription = new Subscription(deviceId, roomId, mask, listener);
+        Subscription[] current = subscriptions;
+        Subscription[] grown = new Subscription[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = subscription;
+        subscriptions = grown;
+        if (!suspended) {
+            interest |= mask;
+        }
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        int pos = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                pos = i;
+                break;
+            }
+        }
+        if (pos < 0) {
+            return;
+        }
+        Subscription[] shrunk = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, pos);
+        System.arraycopy(current, pos + 1, shrunk, pos, current.length - pos - 1);
+        subscriptions = shrunk;
+        updateInterest();
+    }
+
+    // While suspended, devices publish nothing at all: wants() is false for every type,
+    // so no listener or rule sees the changes. Used while a journal is replayed.
+    synchronized void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+        updateInterest();
+    }
+
+    private synchronized void updateInterest() {
+        long mask = 0L;
+        if (!suspended) {
+            for (Subscription s : subscriptions) {
+                mask |= s.typeMask;
+            }
+        }
+        interest = mask;
+    }
+
+    boolean wants(StateChange.Type type) {
+        return (interest & type.bit()) != 0L;
+    }
+
+    // Called by devices under their monitor, after checking wants(type)
+    void publish(StateChange change) {
+        published.incrementAndGet();
+        queue.offer(change);
+        if (scheduled.compareAndSet(false, true)) {
+            dispatcher.execute(drainTask);
+        }
+    }
+
+    // Blocks until every change published before this call has been delivered. From
+    // inside a listener it returns at once, since the caller is the one delivering.
+    public void flush() {
+        long target = published.get();
+        if (delivered.get() >= target || draining == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (flushLock) {
+            // Registered before re-checking, so a drain that misses us has already
+            // published the count we are about to read
+            flushWaiters++;
+            try {
+                while (delivered.get() < target) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                flushWaiters--;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    private void drain() {
+        draining = Thread.currentThread();
+        try {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                StateChange change = queue.poll();
+                if (change == null) {
+                    break;
+                }
+                deliver(change);
+                delivered.incrementAndGet();
+            }
+        } finally {
+            draining = null;
+            scheduled.set(false);
+        }
+        if (flushWaiters > 0) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+        // A publisher that lost the race with the reset above relies on this check
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            dispatcher.execute(drainTask);
+        }
+    }
+
+    private void deliver(StateChange change) {
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.matches(change)) {
+                continue;
+            }
+            try {
+                subscription.listener.onStateChange(change);
+            } catch (RuntimeException e) {
+                // A failing listener must not stop delivery to the others
+                EventLog.warn(change.getDeviceId(), change.getDevice().getName(),
+                        "state change listener failed:", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package smarthome;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+// Streaming export of the status of every device in a home. Each device is
+// rendered into one reused StringBuilder (JSON) or straight into the output
+// buffer (binary) under its own monitor, so the export holds one device lock at
+// a time, never builds per-device strings and needs constant memory however
+// large the home is.
+//
+// JSON lines: one object per device, e.g.
+//   {"room":"room1","id":"d1","name":"Lamp","type":"light","on":true,"online":true,
+//    "watts":4.0,"brightness":40,"color":"#FFFFFF"}
+// Binary: magic "CAST", version, export time, then per room its id, name, device
+// count and the devices in HomeSnapshot's device encoding; a null room id ends it.
+// Like the JSON export it never includes lock secrets: since version 2 a lock is
+// just its locked flag, with no access code or code digest after it.
+public final class StatusExport {
+
+    static final int BINARY_MAGIC = 0x43415354; // "CAST"
+    static final short BINARY_VERSION = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NULL_STRING = 0xFFFF;
+
+    private StatusExport() {
+    }
+
+    public static long writeJsonLines(Home home, OutputStream out) throws IOException {
+        return writeJsonLines(home, Channels.newChannel(out));
+    }
+
+    // Returns the number of devices written
+    public static long writeJsonLines(Home home, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        StringBuilder line = new StringBuilder(256);
+        long count = 0L;
+        for (Room room : home.getAllRooms()) {
+            for (SmartDevice device : room.getAllDevices()) {
+                line.setLength(0);
+                synchronized (device) {
+                    appendJson(line, room, device);
+                }
+                line.append('\n');
+                int index = 0;
+                while ((index = StatusFormat.putUtf8(buffer, line, index)) < line.length()) {
+                    drain(buffer, out);
+                }
+                count++;
+            }
+        }
+        drain(buffer, out);
+        return count;
+    }
+
+    public static long writeBinary(Home home, OutputStream out) throws IOException {
+        return writeBinary(home, Channels.newChannel(out));
+    }
+
+    // Returns the number of devices written
+    public static long writeBinary(Home home, WritableByteChannel out) throws IOException {
+        HomeSnapshot.Writer writer = new HomeSnapshot.Writer(out);
+        writer.ensure(14);
+        writer.buffer.putInt(BINARY_MAGIC).putShort(BINARY_VERSION).putLong(System.currentTimeMillis());
+        long count = 0L;
+        for (Room room : home.getAllRooms()) {
+            // Copy first so the count written matches the devices that follow
+            SmartDevice[] devices = room.getAllDevices().toArray(new SmartDevice[0]);
+            writer.putString(room.getId());
+            writer.putString(room.getName());
+            writer.putInt(devices.length);
+            for (SmartDevice device : devices) {
+                synchronized (device) {
+                    HomeSnapshot.writeDevice(writer, room, device, false);
+                }
+            }
+            count += devices.length;
+        }
+        writer.ensure(2);
+        writer.buffer.putShort((short) NULL_STRING);
+        writer.flush();
+        return count;
+    }
+
+    // Call while holding the device monitor
+    static void appendJson(StringBuilder sb, Room room, SmartDevice device) {
+        sb.append("{\"room\":");
+        StatusFormat.appendJsonString(sb, room.getId());
+        sb.append(",\"id\":");
+        StatusFormat.appendJsonString(sb, device.getId());
+        sb.append(",\"name\":");
+        StatusFormat.appendJsonString(sb, device.getName());
+        sb.append(",\"type\":\"").append(DeviceType.of(device).getLabel()).append('"');
+        sb.append(",\"on\":").append(device.isOn());
+        sb.append(",\"online\":").append(device.isOnline());
+        if (device instanceof EnergyConsumer) {
+            sb.append(",\"watts\":").append(((EnergyConsumer) device).getEnergyConsumption());
+        }
+        if (device instanceof Light) {
+            Light light = (Light) device;
+            sb.append(",\"brightness\":").append(light.getBrightness());
+            sb.append(",\"color\":");
+            StatusFormat.appendJsonString(sb, light.getColor());
+        } else if (device instanceof Thermostat) {
+            Thermostat thermostat = (Thermostat) device;
+            sb.append(",\"current\":").append(thermostat.getCurrentTemperature());
+            sb.append(",\"target\":").append(thermostat.getTargetTemperature());
+            sb.append(",\"mode\":");
+            StatusFormat.appendJsonString(sb, thermostat.getMode());
+        } else if (device instanceof SmartTV) {
+            SmartTV tv = (SmartTV) device;
+            sb.append(",\"volume\":").append(tv.getVolume());
+            sb.append(",\"channel\":").append(tv.getChannel());
+            sb.append(",\"input\":");
+            StatusFormat.appendJsonString(sb, tv.getInput());
+        } else if (device instanceof SecurityCamera) {
+            SecurityCamera camera = (SecurityCamera) device;
+            sb.append(",\"recording\":").append(camera.isRecording());
+            sb.append(",\"resolution\":");
+            StatusFormat.appendJsonString(sb, camera.getResolution());
+            sb.append(",\"nightVision\":").append(camera.hasNightVision());
+        } else if (device instanceof SmartLock) {
+            sb.append(",\"locked\":").append(((SmartLock) device).isLocked());
+        } else if (device instanceof MotionSensor) {
+            MotionSensor sensor = (MotionSensor) device;
+            sb.append(",\"motion\":").append(sensor.isMotionDetected());
+            sb.append(",\"sensitivity\":").append(sensor.getSensitivityLevel());
+            sb.append(",\"lastMotion\":").append(sensor.getLastMotionTime());
+        }
+        sb.append('}');
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,143 @@
+package smarthome;
+
+import java.nio.ByteBuffer;
+
+// Formatting helpers for the status renderers and exporters: they append numbers
+// and text straight into the caller's buffer instead of going through
+// String.format or String.getBytes.
+final class StatusFormat {
+
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L};
+    private static final double MAX_FIXED = 1e15;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private StatusFormat() {
+    }
+
+    // Like String.format("%.Nf") in the root locale: rounds half up, pads the fraction
+    // with zeros. Values too large for a long fall back to Double.toString.
+    static StringBuilder appendFixed(StringBuilder sb, double value, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        double scaled = Math.abs(value) * scale;
+        if (Double.isNaN(value) || scaled >= MAX_FIXED) {
+            return sb.append(value);
+        }
+        long rounded = (long) (scaled + 0.5);
+        if (value < 0.0) {
+            sb.append('-');
+        }
+        sb.append(rounded / scale);
+        if (decimals > 0) {
+            sb.append('.');
+            long fraction = rounded % scale;
+            for (long digit = scale / 10; digit > 1 && fraction < digit; digit /= 10) {
+                sb.append('0');
+            }
+            sb.append(fraction);
+        }
+        return sb;
+    }
+
+    // Bytes needed to encode s as UTF-8; an unpaired surrogate counts as '?', as in getBytes
+    static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Encodes s from index on into out until s ends or the next character does not fit;
+    // returns the index of the first character not written
+    static int putUtf8(ByteBuffer out, CharSequence s, int index) {
+        int length = s.length();
+        while (index < length) {
+            char c = s.charAt(index);
+            if (c < 0x80) {
+                if (!out.hasRemaining()) {
+                    return index;
+                }
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                if (out.remaining() < 2) {
+                    return index;
+                }
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && index + 1 < length
+                    && Character.isLowSurrogate(s.charAt(index + 1))) {
+                if (out.remaining() < 4) {
+                    return index;
+                }
+                int cp = Character.toCodePoint(c, s.charAt(index + 1));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+                index++;
+            } else if (Character.isSurrogate(c)) {
+                if (!out.hasRemaining()) {
+                    return index;
+                }
+                out.put((byte) '?');
+            } else {
+                if (out.remaining() < 3) {
+                    return index;
+                }
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+            index++;
+        }
+        return index;
+    }
+
+    // Appends s as a JSON string literal, quotes included
+    static StringBuilder appendJsonString(StringBuilder sb, String s) {
+        if (s == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+}
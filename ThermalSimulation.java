@@ -0,0 +1,254 @@
+package smarthome;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Advances the room temperature of every registered thermostat. Per step of dt seconds:
+//
+//   output = clamp((target - t) * GAIN, -cooling, heating)      heating/cooling 1 or 0 by mode and power
+//   t     += dt * (loss * (outdoor - t) + output * RATE)
+//
+// so a room drifts toward the outdoor temperature at its loss rate and the thermostat
+// pushes it toward the target in proportion to the gap. "heat" only heats, "cool" only
+// cools, "off" and a powered-off thermostat do neither, any other mode does both.
+//
+// State is kept as parallel primitive arrays indexed by slot, so a step is one tight
+// loop over doubles with no object access. Devices are only touched around it: a
+// thermostat whose settings change queues itself once, and the next step re-reads just
+// those; a new temperature is written back once it has moved REPORT_STEP from the value the
+// device last showed, which keeps state change and energy updates to a trickle.
+public class ThermalSimulation {
+
+    private static final double GAIN = 0.5;                      // full output 2 C from target
+    private static final double RATE = 3.0 / 3600.0;             // C per second at full output
+    private static final double DEFAULT_LOSS = 0.1 / 3600.0;     // per second, 10 h time constant
+    private static final double MAX_SUBSTEP = 60.0;              // seconds, keeps Euler stable
+    private static final double REPORT_STEP = 0.05;              // C
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "thermal-simulation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private Thermostat[] devices = new Thermostat[INITIAL_CAPACITY];
+    private double[] temperature = new double[INITIAL_CAPACITY];
+    private double[] reported = new double[INITIAL_CAPACITY];
+    private double[] target = new double[INITIAL_CAPACITY];
+    private double[] heating = new double[INITIAL_CAPACITY];
+    private double[] cooling = new double[INITIAL_CAPACITY];
+    private double[] loss = new double[INITIAL_CAPACITY];
+    private int size;
+    private final Map<Thermostat, Integer> slots = new IdentityHashMap<Thermostat, Integer>();
+    private final Map<String, Double> roomLoss = new HashMap<String, Double>();
+    private final ConcurrentLinkedQueue<Thermostat> changed = new ConcurrentLinkedQueue<Thermostat>();
+    private double outdoor = 10.0;
+    private long steps;
+    private long lastStepNanos;
+    private ScheduledFuture<?> ticking;
+
+    public synchronized void add(Thermostat thermostat) {
+        if (slots.containsKey(thermostat)) {
+            return;
+        }
+        if (size == devices.length) {
+            grow(size * 2);
+        }
+        int slot = size++;
+        devices[slot] = thermostat;
+        slots.put(thermostat, slot);
+        Double perSecond = roomLoss.get(thermostat.getLocation());
+        loss[slot] = perSecond == null ? DEFAULT_LOSS : perSecond;
+        temperature[slot] = thermostat.getCurrentTemperature();
+        reported[slot] = temperature[slot];
+        thermostat.attachSimulation(this);
+        readControls(slot);
+    }
+
+    public synchronized int addAll(Home home) {
+        int added = 0;
+        for (SmartDevice device : home.getAllDevices()) {
+            if (device instanceof Thermostat && !slots.containsKey(device)) {
+                add((Thermostat) device);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    // The last slot moves into the freed one, so the arrays stay dense
+    public synchronized boolean remove(Thermostat thermostat) {
+        Integer slot = slots.remove(thermostat);
+        if (slot == null) {
+            return false;
+        }
+        thermostat.attachSimulation(null);
+        int last = --size;
+        if (slot != last) {
+            devices[slot] = devices[last];
+            temperature[slot] = temperature[last];
+            reported[slot] = reported[last];
+            target[slot] = target[last];
+            heating[slot] = heating[last];
+            cooling[slot] = cooling[last];
+            loss[slot] = loss[last];
+            slots.put(devices[slot], slot);
+        }
+        devices[last] = null;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void setOutdoorTemperature(double celsius) {
+        outdoor = celsius;
+    }
+
+    public synchronized double getOutdoorTemperature() {
+        return outdoor;
+    }
+
+    // Fraction of the indoor/outdoor difference a room loses per hour; draughty rooms
+    // and big windows lose more. Applies to thermostats in the room now and later.
+    public synchronized void setRoomLoss(String roomId, double perHour) {
+        double perSecond = Math.max(0.0, perHour) / 3600.0;
+        roomLoss.put(roomId, perSecond);
+        for (int i = 0; i < size; i++) {
+            if (roomId.equals(devices[i].getLocation())) {
+                loss[i] = perSecond;
+            }
+        }
+    }
+
+    // Advances every thermostat by the given simulated time; returns how many
+    // devices were updated with a new temperature
+    public synchronized int step(double seconds) {
+        long start = System.nanoTime();
+        Thermostat device;
+        while ((device = changed.poll()) != null) {
+            Integer slot = slots.get(device);
+            if (slot != null) {
+                readControls(slot);
+            }
+        }
+        double remaining = seconds;
+        while (remaining > 0.0) {
+            double dt = Math.min(remaining, MAX_SUBSTEP);
+            advance(dt);
+            remaining -= dt;
+        }
+        int updated = 0;
+        for (int i = 0; i < size; i++) {
+            if (Math.abs(temperature[i] - reported[i]) >= REPORT_STEP) {
+                reported[i] = temperature[i];
+                devices[i].simulatedTemperature(temperature[i]);
+                updated++;
+            }
+        }
+        steps++;
+        lastStepNanos = System.nanoTime() - start;
+        return updated;
+    }
+
+    // The hot loop: primitive arrays only, no calls or branches beyond min/max
+    private void advance(double dt) {
+        int n = size;
+        double out = outdoor;
+        double[] t = temperature;
+        double[] goal = target;
+        double[] heat = heating;
+        double[] cool = cooling;
+        double[] k = loss;
+        for (int i = 0; i < n; i++) {
+            double current = t[i];
+            double output = Math.min(heat[i], Math.max(-cool[i], (goal[i] - current) * GAIN));
+            t[i] = current + dt * (k[i] * (out - current) + output * RATE);
+        }
+    }
+
+    // Steps every tickMillis of wall time, each tick covering tickMillis * speedup of
+    // simulated time; a speedup of 60 turns each real second into a simulated minute
+    public synchronized void start(long tickMillis, final double speedup) {
+        if (ticking != null) {
+            return;
+        }
+        final double seconds = tickMillis / 1000.0 * speedup;
+        ticking = TICKER.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    step(seconds);
+                } catch (RuntimeException e) {
+                    EventLog.warn("thermal", "simulation", "step failed:", e.getMessage());
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (ticking != null) {
+            ticking.cancel(false);
+            ticking = null;
+        }
+    }
+
+    public synchronized double getTemperature(Thermostat thermostat) {
+        Integer slot = slots.get(thermostat);
+        return slot == null ? Double.NaN : temperature[slot];
+    }
+
+    public synchronized long getStepCount() {
+        return steps;
+    }
+
+    public synchronized long getLastStepNanos() {
+        return lastStepNanos;
+    }
+
+    // Called by a thermostat, under its own monitor, when its settings change
+    void controlsChanged(Thermostat thermostat) {
+        changed.offer(thermostat);
+    }
+
+    private void readControls(int slot) {
+        Thermostat device = devices[slot];
+        synchronized (device) {
+            device.controlsRead();
+            // Keep the unreported part of the simulated temperature unless someone
+            // set the temperature on the device itself
+            if (device.getCurrentTemperature() != reported[slot]) {
+                temperature[slot] = device.getCurrentTemperature();
+                reported[slot] = temperature[slot];
+            }
+            target[slot] = device.getTargetTemperature();
+            String mode = device.getMode() == null ? "" : device.getMode().toLowerCase(Locale.ROOT);
+            boolean on = device.isOn();
+            heating[slot] = on && !mode.equals("cool") && !mode.equals("off") ? 1.0 : 0.0;
+            cooling[slot] = on && !mode.equals("heat") && !mode.equals("off") ? 1.0 : 0.0;
+        }
+    }
+
+    private void grow(int capacity) {
+        devices = Arrays.copyOf(devices, capacity);
+        temperature = Arrays.copyOf(temperature, capacity);
+        reported = Arrays.copyOf(reported, capacity);
+        target = Arrays.copyOf(target, capacity);
+        heating = Arrays.copyOf(heating, capacity);
+        cooling = Arrays.copyOf(cooling, capacity);
+        loss = Arrays.copyOf(loss, capacity);
+    }
+}
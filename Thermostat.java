@@ -1,100 +1,169 @@
 package smarthome;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
 
 public class Thermostat extends SmartDevice implements Controllable, EnergyConsumer, Schedulable {
 
-    private double targetTemperature = 22.0; // Celsius
-    private double currentTemperature = 21.0;
-    private String mode = "auto";
-    private final List<String> schedules = new ArrayList<String>();
+    private static final Set<DeviceOperation> OPERATIONS =
+            Collections.unmodifiableSet(EnumSet.of(DeviceOperation.TEMPERATURE, DeviceOperation.MODE));
+
+    private volatile double targetTemperature = 22.0; // Celsius
+    private volatile double currentTemperature = 21.0;
+    private volatile String mode = "auto";
+    private ThermalSimulation simulation; // guarded by this; set while a simulation owns the temperature
+    private boolean controlsPending;
 
     public Thermostat(String id, String name, String roomId) {
         super(id, name, roomId);
     }
 
-    public void turnOn() {
+    public synchronized void turnOn() {
         if (!isOnline) {
-            System.out.println(name + " is offline.");
+            EventLog.warn(this, "is offline.");
         } else {
             isOn = true;
-            System.out.println(name + " activated in " + mode + " mode. Target: " + targetTemperature + " C");
+            controlsChanged();
+            energyChanged();
+            stateChanged(StateChange.Type.POWER, true);
+            EventLog.info(this, "{name} activated in {} mode. Target: {} C", mode, getTargetTemperature());
         }
     }
 
-    public void turnOff() {
+    public synchronized void turnOff() {
         isOn = false;
-        System.out.println(name + " turned OFF");
+        controlsChanged();
+        energyChanged();
+        stateChanged(StateChange.Type.POWER, false);
+        EventLog.info(this, "turned OFF");
     }
 
     public String getStatus() {
-        return String.format(
-                "Thermostat: %s | %s | Current: %.1f C | Target: %.1f C | Mode: %s",
-                name,
-                isOn ? "ON" : "OFF",
-                currentTemperature,
-                targetTemperature,
-                mode
-        );
-    }
-
-    public void control(String command, Object value) {
-        if (command == null) return;
-        switch (command.toLowerCase()) {
-            case "temperature":
-                setTargetTemperature((Double) value);
+        return appendStatus(new StringBuilder(96)).toString();
+    }
+
+    public synchronized StringBuilder appendStatus(StringBuilder sb) {
+        sb.append("Thermostat: ").append(name)
+                .append(" | ").append(isOn ? "ON" : "OFF")
+                .append(" | Current: ");
+        StatusFormat.appendFixed(sb, currentTemperature, 1).append(" C | Target: ");
+        StatusFormat.appendFixed(sb, targetTemperature, 1).append(" C | Mode: ");
+        return sb.append(mode);
+    }
+
+    public synchronized void control(String command, Object value) {
+        if (command == null) {
+            return;
+        }
+        DeviceOperation operation = DeviceOperation.fromCommand(command);
+        if (operation == null || !supports(operation)) {
+            EventLog.warn(this, "Unknown command: {}", command);
+            return;
+        }
+        try {
+            apply(CommandHandle.bind(this, operation, value));
+        } catch (InvalidOperationException e) {
+            EventLog.warn(this, "rejected command", e.getMessage());
+        }
+    }
+
+    public String[] getAvailableCommands() {
+        return new String[]{"temperature", "mode"};
+    }
+
+    public boolean supports(DeviceOperation operation) {
+        return OPERATIONS.contains(operation);
+    }
+
+    public synchronized void apply(CommandHandle command) {
+        switch (command.getOperation()) {
+            case TEMPERATURE:
+                setTargetTemperature(command.getDoubleValue());
                 break;
-            case "mode":
-                setMode((String) value);
+            case MODE:
+                setMode(command.getTextValue());
                 break;
             default:
-                System.out.println("Unknown command: " + command);
+                EventLog.warn(this, "Unknown command: {}", command.getOperation().getCommand());
         }
     }
 
-    public String[] getAvailableCommands() {
-        return new String[]{"temperature", "mode"};
+    public boolean isInState(CommandHandle command) {
+        switch (command.getOperation()) {
+            case TEMPERATURE:
+                return targetTemperature == Math.max(15.0, Math.min(30.0, command.getDoubleValue()));
+            case MODE:
+                return Objects.equals(mode, command.getTextValue());
+            default:
+                return false;
+        }
     }
 
     public double getEnergyConsumption() {
         if (!isOn) {
             return 0.0;
         }
-        double diff = Math.abs(targetTemperature - currentTemperature);
-        return diff * 100.0;
+        double diff = targetTemperature - currentTemperature;
+        String current = mode;
+        // Heat-only and cool-only modes idle once the room is past the target
+        if ("off".equalsIgnoreCase(current)
+                || (diff < 0.0 && "heat".equalsIgnoreCase(current))
+                || (diff > 0.0 && "cool".equalsIgnoreCase(current))) {
+            return 0.0;
+        }
+        return Math.abs(diff) * 100.0;
     }
 
     public double getDailyUsage() {
-        return getEnergyConsumption() * 12.0 / 1000.0;
+        double measured = measuredDailyUsage();
+        // Outside a home there is no history yet, so fall back to a typical duty cycle
+        return measured >= 0.0 ? measured : getEnergyConsumption() * 12.0 / 1000.0;
     }
 
-    public void scheduleAction(String action, String time) {
-        String entry = action + " at " + time;
-        schedules.add(entry);
-        System.out.println("Scheduled: " + name + " - " + entry);
+    public String scheduleAction(String action, String time) throws InvalidOperationException {
+        ScheduleIndex.Entry entry = ScheduleIndex.shared().add(this, action, time);
+        EventLog.info(this, "Scheduled: {name} - {}", entry.describe());
+        return entry.getId();
     }
 
-    public void cancelSchedule(String schedule) {
-        schedules.remove(schedule);
+    public boolean cancelSchedule(String schedule) {
+        return ScheduleIndex.shared().cancel(this, schedule);
     }
 
     public String[] getScheduledActions() {
-        return schedules.toArray(new String[0]);
+        return ScheduleIndex.shared().describe(this);
     }
 
-    public void setTargetTemperature(double temp) {
+    public synchronized void setTargetTemperature(double temp) {
         targetTemperature = Math.max(15.0, Math.min(30.0, temp));
-        System.out.println(name + " target temperature set to " + targetTemperature + " C");
+        controlsChanged();
+        energyChanged();
+        stateChanged(StateChange.Type.TARGET_TEMPERATURE, targetTemperature);
+        EventLog.info(this, "{name} target temperature set to {} C", targetTemperature);
     }
 
-    public void setMode(String mode) {
+    public synchronized void setMode(String mode) {
         this.mode = mode;
-        System.out.println(name + " mode set to " + mode);
+        controlsChanged();
+        energyChanged();
+        stateChanged(StateChange.Type.MODE, mode);
+        EventLog.info(this, "mode set to", mode);
     }
 
-    public void setCurrentTemperature(double temp) {
+    public synchronized void setCurrentTemperature(double temp) {
         this.currentTemperature = temp;
+        controlsChanged();
+        energyChanged();
+        stateChanged(StateChange.Type.CURRENT_TEMPERATURE, temp);
+    }
+
+    synchronized void restore(double targetTemperature, double currentTemperature, String mode) {
+        this.targetTemperature = targetTemperature;
+        this.currentTemperature = currentTemperature;
+        this.mode = mode;
+        controlsChanged();
     }
 
     public double getTargetTemperature() {
@@ -108,4 +177,31 @@ public class Thermostat extends SmartDevice implements Controllable, EnergyConsu
     public String getMode() {
         return mode;
     }
+
+    // Written by ThermalSimulation; unlike setCurrentTemperature it does not count as
+    // a control change the simulation has to pick up again
+    synchronized void simulatedTemperature(double temp) {
+        this.currentTemperature = temp;
+        energyChanged();
+        stateChanged(StateChange.Type.CURRENT_TEMPERATURE, temp);
+    }
+
+    synchronized void attachSimulation(ThermalSimulation simulation) {
+        this.simulation = simulation;
+        this.controlsPending = false;
+    }
+
+    // Called by the simulation under this monitor once it has read the settings
+    void controlsRead() {
+        controlsPending = false;
+    }
+
+    // Queues this thermostat once per batch of changes, so a simulation step only
+    // re-reads the thermostats whose settings actually changed
+    private void controlsChanged() {
+        if (simulation != null && !controlsPending) {
+            controlsPending = true;
+            simulation.controlsChanged(this);
+        }
+    }
 }
@@ -0,0 +1,112 @@
+package smarthome;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Lookups, command execution, event dispatch and energy totals on synthetic homes
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ControllerBenchmarks {
+
+    @Param({"10", "1000", "100000"})
+    public int devices;
+
+    // Latency histograms time one call in this many; 1 times every call, 0 none
+    @Param({"16"})
+    public int latencySampling;
+
+    private Home home;
+    private DeviceController controller;
+    private String[] ids;
+    private String[] names;
+    private String[] lightIds;
+    private String[] sensorIds;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EventLog.setSilent(true);
+        home = SmartHomeBenchmark.syntheticHome(devices);
+        controller = new DeviceController(home);
+        controller.getMetrics().setLatencySampling(latencySampling);
+        SmartDevice[] all = home.getAllDevices().toArray(new SmartDevice[0]);
+        ids = new String[all.length];
+        names = new String[all.length];
+        int lights = 0;
+        int sensors = 0;
+        for (int i = 0; i < all.length; i++) {
+            ids[i] = all[i].getId();
+            names[i] = all[i].getName().toUpperCase();
+            if (all[i] instanceof Light) {
+                lights++;
+            } else if (all[i] instanceof MotionSensor) {
+                sensors++;
+            }
+        }
+        lightIds = new String[Math.max(1, lights)];
+        sensorIds = new String[Math.max(1, sensors)];
+        int l = 0;
+        int s = 0;
+        for (SmartDevice device : all) {
+            if (device instanceof Light) {
+                lightIds[l++] = device.getId();
+            } else if (device instanceof MotionSensor) {
+                sensorIds[s++] = device.getId();
+            }
+        }
+        // One rule per sensor, each switching a light
+        for (int i = 0; i < sensors; i++) {
+            controller.addRule(new AutomationRule("r" + i, "Rule " + i, sensorIds[i],
+                    "motion_detected", lightIds[i % lights], "turn_on"));
+        }
+    }
+
+    private int next(int bound) {
+        int i = cursor++;
+        if (cursor >= 1 << 30) {
+            cursor = 0;
+        }
+        return i % bound;
+    }
+
+    @Benchmark
+    public SmartDevice homeFindDevice() {
+        return home.findDevice(ids[next(ids.length)]);
+    }
+
+    @Benchmark
+    public SmartDevice findDeviceByName() throws DeviceNotFoundException {
+        return controller.findDeviceByName(names[next(names.length)]);
+    }
+
+    @Benchmark
+    public void executeOnDevice() throws Exception {
+        controller.executeOnDevice(lightIds[next(lightIds.length)], "brightness", 40);
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        controller.handleEvent(sensorIds[next(sensorIds.length)], "motion_detected");
+    }
+
+    @Benchmark
+    public double getTotalEnergyConsumption() {
+        return home.getTotalEnergyConsumption();
+    }
+}
@@ -0,0 +1,71 @@
+package smarthome;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Full-home status export into a channel that discards the bytes
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmarks {
+
+    @Param({"1000", "100000"})
+    public int devices;
+
+    private Home home;
+    private final DiscardChannel sink = new DiscardChannel();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EventLog.setSilent(true);
+        home = SmartHomeBenchmark.syntheticHome(devices);
+    }
+
+    @Benchmark
+    public long jsonLines() throws IOException {
+        StatusExport.writeJsonLines(home, sink);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long binary() throws IOException {
+        StatusExport.writeBinary(home, sink);
+        return sink.bytes;
+    }
+
+    static final class DiscardChannel implements WritableByteChannel {
+        long bytes;
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package smarthome;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of a device mutation with nobody listening, with a subscriber for other
+// types only, and with a subscriber that receives every change
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StateChangeBenchmarks {
+
+    @Param({"none", "other", "all"})
+    public String subscriber;
+
+    private Light light;
+    private StateChangeBus bus;
+    private int level;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EventLog.setSilent(true);
+        Home home = new Home("Bench", "Nowhere");
+        Room room = new Room("r", "Room");
+        home.addRoom(room);
+        light = new Light("l", "Light", "r");
+        room.addDevice(light);
+        bus = home.getStateChangeBus();
+        StateChangeBus.Listener listener = new StateChangeBus.Listener() {
+            public void onStateChange(StateChange change) {
+            }
+        };
+        if ("other".equals(subscriber)) {
+            bus.subscribe(null, null, EnumSet.of(StateChange.Type.MOTION), listener);
+        } else if ("all".equals(subscriber)) {
+            bus.subscribe(listener);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void drain() {
+        bus.flush();
+    }
+
+    @Benchmark
+    public void setBrightness() {
+        light.setBrightness(level++ & 63);
+    }
+}
@@ -0,0 +1,109 @@
+package smarthome;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DeviceStateStore against plain device objects. The scans count the lights that are
+// on and their mean brightness, once through the objects and once through the store's
+// columns. buildFleet creates and optionally attaches a fleet of lights; with the GC
+// profiler, gc.alloc.rate.norm divided by the fleet size is the footprint per light;
+// attaching adds the store's columns and its device-to-slot map on top.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateStoreBenchmarks {
+
+    // The same lights twice, once plain and once attached to a store
+    @State(Scope.Benchmark)
+    public static class Fleet {
+        @Param({"1000", "1000000"})
+        public int devices;
+
+        private Light[] plain;
+        private DeviceStateStore store;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            EventLog.setSilent(true);
+            Random random = new Random(42L);
+            plain = new Light[devices];
+            store = new DeviceStateStore(devices);
+            // A third of the lights on, at random brightness
+            for (int i = 0; i < devices; i++) {
+                boolean on = random.nextInt(3) == 0;
+                int brightness = random.nextInt(101);
+                plain[i] = light(i, on, brightness);
+                store.attach(light(i, on, brightness));
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Footprint {
+        @Param({"10000"})
+        public int devices;
+
+        @Param({"false", "true"})
+        public boolean attached;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            EventLog.setSilent(true);
+        }
+    }
+
+    private static Light light(int i, boolean on, int brightness) {
+        Light light = new Light("l" + i, "Light " + i, "room");
+        light.setBrightness(brightness);
+        if (on) {
+            light.turnOn();
+        }
+        return light;
+    }
+
+    @Benchmark
+    public double scanObjects(Fleet fleet) {
+        long sum = 0L;
+        int count = 0;
+        for (Light light : fleet.plain) {
+            if (light.isOn()) {
+                sum += light.getBrightness();
+                count++;
+            }
+        }
+        return count == 0 ? 0.0 : (double) sum / count + count;
+    }
+
+    @Benchmark
+    public double scanStore(Fleet fleet) {
+        return fleet.store.getMeanBrightnessOn() + fleet.store.countOn(DeviceType.LIGHT);
+    }
+
+    @Benchmark
+    public Light[] buildFleet(Footprint footprint) {
+        Light[] lights = new Light[footprint.devices];
+        DeviceStateStore store = footprint.attached ? new DeviceStateStore(footprint.devices) : null;
+        for (int i = 0; i < lights.length; i++) {
+            lights[i] = new Light("l" + i, "Light " + i, "room");
+            if (store != null) {
+                store.attach(lights[i]);
+            }
+        }
+        return lights;
+    }
+}
@@ -0,0 +1,61 @@
+package smarthome;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// getStatus() and appendStatus() into a reused buffer for every device type, walking
+// all devices of that type in the home; run with the GC profiler to compare allocation
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatusBenchmarks {
+
+    @Param({"10", "1000", "100000"})
+    public int devices;
+
+    @Param({"Light", "Thermostat", "SmartTV", "SecurityCamera", "MotionSensor", "SmartLock"})
+    public String type;
+
+    private SmartDevice[] targets;
+    private int cursor;
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EventLog.setSilent(true);
+        Home home = SmartHomeBenchmark.syntheticHome(devices);
+        targets = home.getAllDevices().stream()
+                .filter(d -> d.getClass().getSimpleName().equals(type))
+                .toArray(SmartDevice[]::new);
+    }
+
+    @Benchmark
+    public String getStatus() {
+        SmartDevice device = targets[cursor];
+        cursor = cursor + 1 == targets.length ? 0 : cursor + 1;
+        return device.getStatus();
+    }
+
+    @Benchmark
+    public int appendStatus() {
+        SmartDevice device = targets[cursor];
+        cursor = cursor + 1 == targets.length ? 0 : cursor + 1;
+        buffer.setLength(0);
+        return device.appendStatus(buffer).length();
+    }
+}
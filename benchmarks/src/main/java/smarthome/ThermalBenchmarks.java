@@ -0,0 +1,90 @@
+package smarthome;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One ThermalSimulation tick of one simulated second over many thermostats, with and
+// without a batch of setting changes queued since the previous tick. Thermostats in a
+// home also pay for room and home energy updates on every temperature write-back.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThermalBenchmarks {
+
+    private static final String[] MODES = {"auto", "heat", "cool", "off"};
+
+    @Param({"100000"})
+    public int thermostats;
+
+    // Thermostats whose target changes before each tick in stepWithChanges
+    @Param({"1000"})
+    public int changesPerTick;
+
+    @Param({"false", "true"})
+    public boolean inHome;
+
+    private Thermostat[] devices;
+    private ThermalSimulation simulation;
+    private Random random;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EventLog.setSilent(true);
+        random = new Random(42L);
+        Home home = new Home("Thermal", "Benchmark Street", thermostats);
+        Room[] rooms = new Room[Math.max(1, thermostats / 1000)];
+        for (int r = 0; r < rooms.length; r++) {
+            rooms[r] = new Room("room" + r, "Room " + r);
+            home.addRoom(rooms[r]);
+        }
+        devices = new Thermostat[thermostats];
+        for (int i = 0; i < thermostats; i++) {
+            Room room = rooms[i % rooms.length];
+            Thermostat thermostat = new Thermostat("t" + i, "Thermostat " + i, room.getId());
+            thermostat.turnOn();
+            thermostat.setMode(MODES[i % MODES.length]);
+            thermostat.setTargetTemperature(18.0 + random.nextInt(9));
+            thermostat.setCurrentTemperature(12.0 + random.nextInt(13));
+            if (inHome) {
+                room.addDevice(thermostat);
+            }
+            devices[i] = thermostat;
+        }
+        simulation = new ThermalSimulation();
+        for (Thermostat thermostat : devices) {
+            simulation.add(thermostat);
+        }
+    }
+
+    @Benchmark
+    public int step() {
+        return simulation.step(1.0);
+    }
+
+    @Benchmark
+    public int stepWithChanges() {
+        for (int i = 0; i < changesPerTick; i++) {
+            Thermostat thermostat = devices[cursor];
+            cursor = cursor + 1 == devices.length ? 0 : cursor + 1;
+            thermostat.setTargetTemperature(18.0 + random.nextInt(9));
+        }
+        return simulation.step(1.0);
+    }
+}